@@ -0,0 +1,252 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Will Warren
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.willwarren;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+/**
+ * The result of a job whose payload is still on the connection it was sent over.
+ * <p>
+ * The payload is read straight from the connection's buffer through {@link #getInputStream()},
+ * {@link #getChannel()} or one of the transferTo methods, so it never has to fit in memory. The connection is
+ * reserved for this result until {@link #close()} is called, which skips whatever part of the payload wasn't read.
+ */
+public class StreamingJobResult implements Closeable {
+
+    private final static int CHUNK_SIZE = 8192;
+
+    private final WorkqClient client;
+    private final InputStream in;
+    private final UUID id;
+    private final boolean success;
+    private final long size;
+
+    private long remaining;
+    private boolean closed;
+
+    private final InputStream body = new InputStream() {
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Connection closed by server");
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining == 0) {
+                return -1;
+            }
+
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n == -1) {
+                throw new EOFException("Connection closed by server");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public void close() {
+            StreamingJobResult.this.close();
+        }
+    };
+
+    StreamingJobResult(WorkqClient client, InputStream in, UUID id, boolean success, long size) {
+        this.client = client;
+        this.in = in;
+        this.id = id;
+        this.success = success;
+        this.size = size;
+        this.remaining = size;
+    }
+
+    public UUID getId() {
+        return id;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * @return The size of the result payload in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return The result payload. Closing the stream closes this result.
+     */
+    public InputStream getInputStream() {
+        return body;
+    }
+
+    /**
+     * @return The result payload as a channel. Closing the channel closes this result.
+     */
+    public ReadableByteChannel getChannel() {
+        return Channels.newChannel(body);
+    }
+
+    /**
+     * Write the rest of the result payload to a stream
+     *
+     * @param target The stream to write to, left open
+     * @return The number of bytes written
+     */
+    public long transferTo(OutputStream target) throws IOException {
+        byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, Math.max(1, remaining))];
+        long transferred = 0;
+        int n;
+        while ((n = body.read(chunk)) != -1) {
+            target.write(chunk, 0, n);
+            transferred += n;
+        }
+        return transferred;
+    }
+
+    /**
+     * Write the rest of the result payload to a channel
+     *
+     * @param target The channel to write to, left open
+     * @return The number of bytes written
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, Math.max(1, remaining))];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        long transferred = 0;
+        int n;
+        while ((n = body.read(chunk)) != -1) {
+            buffer.clear().limit(n);
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            transferred += n;
+        }
+        return transferred;
+    }
+
+    /**
+     * Write the rest of the result payload to a file, replacing anything already in it
+     *
+     * @param target The file to write to
+     * @return The number of bytes written
+     */
+    public long transferTo(Path target) throws IOException {
+        FileChannel file = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ReadableByteChannel source = Channels.newChannel(body);
+            long transferred = 0;
+            while (remaining > 0) {
+                transferred += file.transferFrom(source, transferred, remaining);
+            }
+            return transferred;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Read the rest of the result payload into memory
+     */
+    public byte[] toByteArray() throws IOException {
+        if (remaining > Integer.MAX_VALUE - 8) {
+            throw new IOException("Result too large to read into memory: " + remaining + " bytes");
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) remaining);
+        transferTo(buffer);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Skip the unread part of the payload and give the connection back to the client. If the payload can't be
+     * skipped, the connection is closed instead, as it would be out of step with the server.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        boolean discard = false;
+        try {
+            while (remaining > 0) {
+                long skipped = in.skip(remaining);
+                if (skipped <= 0) {
+                    if (in.read() == -1) {
+                        throw new EOFException("Connection closed by server");
+                    }
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+            discard = in.read() != '\r' || in.read() != '\n';
+        } catch (IOException ioe) {
+            discard = true;
+        } finally {
+            client.releaseConnection(discard);
+        }
+    }
+}
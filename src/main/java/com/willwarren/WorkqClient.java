@@ -24,35 +24,114 @@
 
 package com.willwarren;
 
+import com.willwarren.cache.ResultCache;
+import com.willwarren.dedup.DuplicateFilter;
+import com.willwarren.exceptions.DeadlineExceededException;
 import com.willwarren.exceptions.NetworkException;
 import com.willwarren.exceptions.ResponseException;
 import com.willwarren.exceptions.ResponseMalformedException;
 import com.willwarren.exceptions.WorkqException;
+import com.willwarren.jfr.CommandEvent;
+import com.willwarren.jfr.ConnectionEvent;
+import com.willwarren.jfr.ConnectionWaitEvent;
 import com.willwarren.model.BackgroundJob;
+import com.willwarren.model.Deadline;
 import com.willwarren.model.ForegroundJob;
+import com.willwarren.model.JobResult;
+import com.willwarren.model.LeasedJob;
+import com.willwarren.model.Reply;
+import com.willwarren.model.ResponseStatus;
+import com.willwarren.model.ScheduledJob;
+import com.willwarren.ratelimit.RateLimiter;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-public class WorkqClient {
+public class WorkqClient implements Closeable {
 
     private final Log LOG = LogFactory.getLog(WorkqClient.class);
 
     private final static String CRLF = "\r\n";
+    private final static String ERROR = "ERROR";
+
+    // Keep back up to a tenth of a run's deadline, at most this many milliseconds, for the TIMED-OUT reply to arrive
+    private final static long RUN_TIMEOUT_MARGIN = 100;
+
+    // How long setSocket waits for a command, or an open StreamingJobResult, to give the connection back
+    private final static long SET_SOCKET_TIMEOUT = 10000;
+
+    // Closes the connections of calls that overrun their deadline. One thread for all clients, as it only ever closes
+    // a socket.
+    private final static ScheduledThreadPoolExecutor WATCHDOG;
+
+    static {
+        WATCHDOG = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "workq-deadline-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        WATCHDOG.setRemoveOnCancelPolicy(true);
+    }
 
     private String encoding = "UTF-8";
     private String host;
     private int port;
     private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private DuplicateFilter duplicateFilter;
+    private ResultCache resultCache;
+    private RateLimiter rateLimiter;
+    private boolean stackTraces = true;
+
+    // Commands and their replies must not interleave on the socket. A permit rather than a lock, because a
+    // StreamingJobResult holds on to the connection until it is closed, possibly from another thread.
+    private final Semaphore connectionPermit = new Semaphore(1);
+
+    // Name, traffic and reply status of the command holding the connection, for its CommandEvent
+    private String commandName;
+    private long bytesWritten;
+    private long bytesRead;
+    private String replyStatus;
+
+    // Deadline of the command holding the connection and the watchdog enforcing it, if it has one
+    private Deadline deadline;
+    private Watchdog watchdog;
+
+    // Makes discarding the connection atomic with disarming a watchdog and with replacing the socket
+    private final Object socketGuard = new Object();
+
+    // Set once the connection has been closed mid-command, so the next command reconnects rather than failing
+    private volatile boolean discarded;
 
     public WorkqClient(String host, int port) throws IOException {
         this.host = host;
         this.port = port;
 
+        ConnectionEvent event = new ConnectionEvent();
+        event.begin();
         try {
-            socket = new Socket(this.host, this.port);
+            Socket socket = new Socket(this.host, this.port);
+            // Commands are flushed whole, so there is nothing for Nagle's algorithm to coalesce, only replies to delay
+            socket.setTcpNoDelay(true);
+            useSocket(socket);
+            commitConnectionEvent(event, ConnectionEvent.OPEN);
         } catch (IOException ioe) {
             LOG.error("Error connecting to workq host", ioe);
             throw ioe;
@@ -63,11 +142,123 @@ public class WorkqClient {
      * Submit a @link{@link ForegroundJob} and wait for the result.
      * Wraps the "run" command: https://github.com/iamduo/workq/blob/master/doc/protocol.md#run
      *
+     * If a {@link ResultCache} is set, a cached result for the same name and payload is returned without running the
+     * job, and concurrent runs of the same name and payload share a single job.
+     *
      * @param job {@link ForegroundJob} The Job to run
-     * @return The number of replies
+     * @return The job's result
      * @throws WorkqException, NetworkException, ResponseMalformedException
      */
-    public Integer run(ForegroundJob job) throws WorkqException {
+    public JobResult run(ForegroundJob job) throws WorkqException {
+        return run(job, null, stackTraces);
+    }
+
+    /**
+     * Submit a @link{@link ForegroundJob} and wait for the result, giving up once the deadline has passed.
+     * The deadline covers waiting for the connection, sending the job and reading the result. The job's timeout is
+     * cut down to fit inside it, so the server usually replies TIMED-OUT in time and the connection stays usable. If
+     * it doesn't, the connection is closed and reopened by the next command.
+     *
+     * @param job      {@link ForegroundJob} The Job to run
+     * @param deadline When to give up
+     * @return The job's result
+     * @throws DeadlineExceededException If the deadline passed before the server replied
+     */
+    public JobResult run(ForegroundJob job, Deadline deadline) throws WorkqException {
+        return run(job, deadline, stackTraces);
+    }
+
+    /**
+     * Submit a @link{@link ForegroundJob} and wait for the result, returning error replies such as TIMED-OUT instead of
+     * throwing them.
+     *
+     * @param job {@link ForegroundJob} The Job to run
+     * @return A {@link Reply} with the job's result if it is OK
+     * @throws WorkqException If the connection failed or the reply was malformed
+     */
+    public Reply<JobResult> tryRun(ForegroundJob job) throws WorkqException {
+        try {
+            return Reply.ok(run(job, null, false));
+        } catch (ResponseException re) {
+            return Reply.error(re);
+        }
+    }
+
+    /**
+     * Submit a @link{@link ForegroundJob} and wait for the result, giving up once the deadline has passed, and
+     * returning error replies such as TIMED-OUT instead of throwing them.
+     *
+     * @param job      {@link ForegroundJob} The Job to run
+     * @param deadline When to give up
+     * @return A {@link Reply} with the job's result if it is OK
+     * @throws WorkqException If the connection failed, the reply was malformed or the deadline passed
+     */
+    public Reply<JobResult> tryRun(ForegroundJob job, Deadline deadline) throws WorkqException {
+        try {
+            return Reply.ok(run(job, deadline, false));
+        } catch (ResponseException re) {
+            return Reply.error(re);
+        }
+    }
+
+    private JobResult run(final ForegroundJob job, final Deadline deadline, final boolean stackTraces)
+            throws WorkqException {
+        ResultCache cache = resultCache;
+        if (cache == null) {
+            return readFully(runStreaming(job, deadline, stackTraces));
+        }
+
+        return cache.get(job, deadline, new ResultCache.Loader() {
+            public JobResult load() throws WorkqException {
+                return readFully(runStreaming(job, deadline, stackTraces));
+            }
+        });
+    }
+
+    /**
+     * Submit a @link{@link ForegroundJob} and wait for the result, without reading the result payload into memory.
+     * The connection stays reserved for the returned {@link StreamingJobResult} until it is closed, so it must always
+     * be closed, even if the payload isn't wanted.
+     *
+     * @param job {@link ForegroundJob} The Job to run
+     * @return The job's result, with the payload left on the connection
+     * @throws WorkqException, NetworkException, ResponseMalformedException
+     */
+    public StreamingJobResult runStreaming(ForegroundJob job) throws WorkqException {
+        return runStreaming(job, null, stackTraces);
+    }
+
+    /**
+     * Submit a @link{@link ForegroundJob} and wait for the result, without reading the result payload into memory,
+     * giving up once the deadline has passed. The deadline keeps running until the {@link StreamingJobResult} is
+     * closed, so a payload still being read when it passes is cut off.
+     *
+     * @param job      {@link ForegroundJob} The Job to run
+     * @param deadline When to give up
+     * @return The job's result, with the payload left on the connection
+     * @throws DeadlineExceededException If the deadline passed before the server replied
+     */
+    public StreamingJobResult runStreaming(ForegroundJob job, Deadline deadline) throws WorkqException {
+        return runStreaming(job, deadline, stackTraces);
+    }
+
+    private StreamingJobResult runStreaming(ForegroundJob job, Deadline deadline, boolean stackTraces)
+            throws WorkqException {
+
+        RateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            limiter.acquire(job.getName(), false, deadline);
+        }
+
+        int timeout = job.getTimeout();
+        if (deadline != null) {
+            long remaining = deadline.remaining(TimeUnit.MILLISECONDS);
+            long jobTimeout = remaining - Math.min(remaining / 10, RUN_TIMEOUT_MARGIN);
+            if (jobTimeout <= 0) {
+                throw new DeadlineExceededException("Deadline passed before the job was sent");
+            }
+            timeout = (int) Math.min(timeout, jobTimeout);
+        }
 
         // If the priority was passed into the job, we have to append it to the command
         String extraFlags = "";
@@ -75,56 +266,170 @@ public class WorkqClient {
             extraFlags = String.format(" -priority=%d", job.getPriority());
         }
 
+        String convertedCommand = String.format(
+                "run %s %s %d %d %d%s",
+                job.getId().toString(),
+                job.getName(),
+                job.getTtr(),
+                timeout,
+                job.getPayload().length,
+                extraFlags
+        );
+
+        return sendForResult("run", job.getName(), convertedCommand, job.getPayload(), deadline, stackTraces);
+    }
+
+    /**
+     * Wait for the result of a job.
+     * Wraps the "result" command: https://github.com/iamduo/workq/blob/master/doc/protocol.md#result
+     *
+     * @param id          The id of the job
+     * @param waitTimeout Milliseconds to wait for the job to finish
+     * @return The job's result
+     * @throws WorkqException
+     */
+    public JobResult result(UUID id, int waitTimeout) throws WorkqException {
+        return readFully(resultStreaming(id, waitTimeout));
+    }
+
+    /**
+     * Wait for the result of a job, returning error replies such as NOT-FOUND or TIMED-OUT instead of throwing them.
+     *
+     * @param id          The id of the job
+     * @param waitTimeout Milliseconds to wait for the job to finish
+     * @return A {@link Reply} with the job's result if it is OK
+     * @throws WorkqException If the connection failed or the reply was malformed
+     */
+    public Reply<JobResult> tryResult(UUID id, int waitTimeout) throws WorkqException {
         try {
+            String command = resultCommand(id, waitTimeout);
+            return Reply.ok(readFully(sendForResult("result", null, command, null, null, false)));
+        } catch (ResponseException re) {
+            return Reply.error(re);
+        }
+    }
 
-            OutputStreamWriter outputStreamWriter = new OutputStreamWriter(socket.getOutputStream());
+    /**
+     * Wait for the result of a job, without reading the result payload into memory.
+     * The connection stays reserved for the returned {@link StreamingJobResult} until it is closed.
+     *
+     * @param id          The id of the job
+     * @param waitTimeout Milliseconds to wait for the job to finish
+     * @return The job's result, with the payload left on the connection
+     * @throws WorkqException
+     */
+    public StreamingJobResult resultStreaming(UUID id, int waitTimeout) throws WorkqException {
+        return sendForResult("result", null, resultCommand(id, waitTimeout), null, null, stackTraces);
+    }
 
-            String convertedCommand = String.format(
-                    "run %s %s %d %d %d%s\r\n%s\r\n",
-                    job.getId().toString(),
-                    job.getName(),
-                    job.getTtr(),
-                    job.getTimeout(),
-                    job.getPayload().length,
-                    extraFlags,
-                    new String(job.getPayload())
-            );
+    private String resultCommand(UUID id, int waitTimeout) {
+        return String.format("result %s %d", id.toString(), waitTimeout);
+    }
 
-            LOG.info(convertedCommand);
-            outputStreamWriter.write(convertedCommand);
-            outputStreamWriter.flush();
+    /**
+     * Adds a new job to be run in the background - don't bother waiting for the result.
+     * If a {@link DuplicateFilter} is set and it has seen the job's id acknowledged recently, nothing is sent.
+     *
+     * @param job {@link BackgroundJob} The job to add
+     * @throws WorkqException
+     */
+    public void add(BackgroundJob job) throws WorkqException {
+        add(job, null, stackTraces);
+    }
 
-            BufferedReader responseReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    /**
+     * Adds a new job to be run in the background, giving up once the deadline has passed.
+     * The deadline covers waiting for the connection, sending the job and reading the reply. If it passes mid-command
+     * the connection is closed, and reopened by the next command. The job may or may not have been added.
+     *
+     * @param job      {@link BackgroundJob} The job to add
+     * @param deadline When to give up
+     * @throws DeadlineExceededException If the deadline passed before the server replied
+     */
+    public void add(BackgroundJob job, Deadline deadline) throws WorkqException {
+        add(job, deadline, stackTraces);
+    }
 
-            // TODO: Get more than just the first line. Also get the response payload
-            String statusLine = responseReader.readLine();
-            LOG.info(statusLine);
+    /**
+     * Adds a new job to be run in the background, returning error replies instead of throwing them
+     *
+     * @param job {@link BackgroundJob} The job to add
+     * @return A {@link Reply} with no value
+     * @throws WorkqException If the connection failed or the reply was malformed
+     */
+    public Reply<Void> tryAdd(BackgroundJob job) throws WorkqException {
+        try {
+            add(job, null, false);
+            return Reply.ok(null);
+        } catch (ResponseException re) {
+            return Reply.error(re);
+        }
+    }
 
-            Integer count = checkOkWithReply(statusLine);
-            if (count != 1) {
-                throw new ResponseMalformedException();
-            }
+    /**
+     * Adds a new job to be run in the background, giving up once the deadline has passed, and returning error replies
+     * instead of throwing them
+     *
+     * @param job      {@link BackgroundJob} The job to add
+     * @param deadline When to give up
+     * @return A {@link Reply} with no value
+     * @throws WorkqException If the connection failed, the reply was malformed or the deadline passed
+     */
+    public Reply<Void> tryAdd(BackgroundJob job, Deadline deadline) throws WorkqException {
+        try {
+            add(job, deadline, false);
+            return Reply.ok(null);
+        } catch (ResponseException re) {
+            return Reply.error(re);
+        }
+    }
 
-            return count;
-        } catch (UnsupportedEncodingException uee) {
-            LOG.error("Invalid encoding used to convert payload", uee);
-            throw new WorkqException("Invalid encoding used to convert payload", uee);
-        } catch (IOException ioe) {
-            LOG.error("Error writing command to server", ioe);
-            throw new NetworkException("Error writing command to server", ioe);
-        } catch (NumberFormatException nfe) {
-            LOG.error("Response was malformed", nfe);
-            throw new ResponseMalformedException();
+    private void add(BackgroundJob job, Deadline deadline, boolean stackTraces) throws WorkqException {
+
+        DuplicateFilter filter = duplicateFilter;
+        if (filter != null && filter.isDuplicate(job.getId())) {
+            LOG.info("Skipping duplicate job " + job.getId());
+            return;
+        }
+
+        String time = null;
+        RateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            long delay = limiter.acquire(job.getName(), true, deadline);
+            if (delay > 0) {
+                // Over the limit, so have the server hold the job until its slot. Rounded up, as it schedules to the
+                // second and must not run the job early.
+                long slot = System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(delay) + 999;
+                time = ScheduledJob.formatTime(new Date(slot - slot % 1000));
+            }
         }
+
+        submit(job, time, filter, deadline, stackTraces);
     }
 
     /**
-     * Adds a new job to be run in the background - don't bother waiting for the result
+     * Adds a new job to be run in the background once its time has come.
+     * Wraps the "schedule" command: https://github.com/iamduo/workq/blob/master/doc/protocol.md#schedule
+     * Rate limits don't apply, as the job doesn't run until later.
      *
-     * @param job {@link BackgroundJob} The job to add
+     * @param job {@link ScheduledJob} The job to schedule
      * @throws WorkqException
      */
-    public void add(BackgroundJob job) throws WorkqException {
+    public void schedule(ScheduledJob job) throws WorkqException {
+        DuplicateFilter filter = duplicateFilter;
+        if (filter != null && filter.isDuplicate(job.getId())) {
+            LOG.info("Skipping duplicate job " + job.getId());
+            return;
+        }
+
+        submit(job, job.getTimeString(), filter, null, stackTraces);
+    }
+
+    /**
+     * Send an "add", or a "schedule" if a time is given
+     */
+    private void submit(BackgroundJob job, String time, DuplicateFilter filter, Deadline deadline,
+                        boolean stackTraces) throws WorkqException {
 
         // If the priority was passed into the job, we have to append it to the command
         String extraFlags = "";
@@ -138,124 +443,742 @@ public class WorkqClient {
             extraFlags += String.format(" -max-fails=%d", job.getMaxFailures());
         }
 
+        String commandName = time == null ? "add" : "schedule";
+        CommandEvent event = beginCommand(commandName, deadline);
+        boolean inSync = false;
         try {
 
-            OutputStreamWriter outputStreamWriter = new OutputStreamWriter(socket.getOutputStream());
-
             String convertedCommand = String.format(
-                    "add %s %s %d %d %d%s\r\n%s\r\n",
+                    "%s %s %s %d %d%s %d%s",
+                    commandName,
                     job.getId().toString(),
                     job.getName(),
                     job.getTtr(),
                     job.getTtl(),
+                    time == null ? "" : " " + time,
                     job.getPayload().length,
-                    extraFlags,
-                    new String(job.getPayload())
+                    extraFlags
             );
 
             LOG.info(convertedCommand);
-            outputStreamWriter.write(convertedCommand);
-            outputStreamWriter.flush();
-
-            BufferedReader responseReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            writeCommand(convertedCommand, job.getPayload());
+            out.flush();
 
-            String statusLine = responseReader.readLine();
+            String statusLine = readLine();
 
             LOG.info(statusLine);
 
-            checkOk(statusLine);
+            checkOk(statusLine, stackTraces);
+            inSync = true;
+
+            if (filter != null) {
+                filter.acknowledged(job.getId());
+            }
+        } catch (ResponseException re) {
+            inSync = true;
+            throw re;
         } catch (UnsupportedEncodingException uee) {
             LOG.error("Invalid encoding used to convert payload", uee);
             throw new WorkqException("Invalid encoding used to convert payload", uee);
+        } catch (IOException ioe) {
+            LOG.error("Error writing command to server", ioe);
+            throw networkFailure("Error writing command to server", ioe);
+        } catch (NumberFormatException nfe) {
+            LOG.error("Response was malformed", nfe);
+            throw new ResponseMalformedException();
+        } finally {
+            endCommand(event, job.getName());
+            releaseCommand(inSync);
+        }
+    }
+
+    /**
+     * Lease a job from any of the given job names, waiting up to waitTimeout milliseconds for one to become available.
+     * Wraps the "lease" command: https://github.com/iamduo/workq/blob/master/doc/protocol.md#lease
+     *
+     * @param names       The job names to lease from
+     * @param waitTimeout Milliseconds to wait for a job
+     * @return The leased job, or null if none became available in time
+     * @throws WorkqException
+     */
+    public LeasedJob lease(List<String> names, int waitTimeout) throws WorkqException {
+        List<LeasedJob> jobs = lease(names, waitTimeout, 1);
+        return jobs.isEmpty() ? null : jobs.get(0);
+    }
+
+    /**
+     * Lease up to count jobs by pipelining count "lease" commands in a single write and then reading every reply.
+     * Leases that time out are left out of the returned list.
+     *
+     * @param names       The job names to lease from
+     * @param waitTimeout Milliseconds each lease waits for a job
+     * @param count       The number of lease commands to send
+     * @return The leased jobs, in the order the server handed them out
+     * @throws WorkqException
+     */
+    public List<LeasedJob> lease(List<String> names, int waitTimeout, int count) throws WorkqException {
+        if (names.isEmpty() || count < 1) {
+            return Collections.emptyList();
+        }
+
+        return leaseBatch(Collections.nCopies(count, names), waitTimeout);
+    }
+
+    /**
+     * Lease up to one job per list of names by pipelining a "lease" command for each list in a single write and then
+     * reading every reply. Leases that time out are left out of the returned list.
+     *
+     * @param nameLists   The job names each lease command leases from
+     * @param waitTimeout Milliseconds each lease waits for a job
+     * @return The leased jobs, in the order the server handed them out
+     * @throws WorkqException
+     */
+    public List<LeasedJob> leaseBatch(List<List<String>> nameLists, int waitTimeout) throws WorkqException {
+        int count = nameLists.size();
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+
+        // Consecutive lists are often the same, so only build a new command line when the names change
+        List<String> commands = new ArrayList<String>(count);
+        List<String> previousNames = null;
+        String convertedCommand = null;
+        for (List<String> names : nameLists) {
+            if (names.isEmpty()) {
+                throw new IllegalArgumentException("Lease needs at least one job name");
+            }
+            if (!names.equals(previousNames)) {
+                StringBuilder command = new StringBuilder("lease");
+                for (String name : names) {
+                    command.append(' ').append(name);
+                }
+                command.append(' ').append(waitTimeout);
+                convertedCommand = command.toString();
+                previousNames = names;
+            }
+            commands.add(convertedCommand);
+        }
+
+        CommandEvent event = beginCommand("lease");
+        boolean inSync = false;
+        try {
+            for (String command : commands) {
+                writeCommand(command, null);
+            }
+            out.flush();
+
+            // Every reply has to be read, even after an error, or the next command would read a stale reply
+            List<LeasedJob> jobs = new ArrayList<LeasedJob>(count);
+            WorkqException error = null;
+            for (int i = 0; i < count; i++) {
+                try {
+                    LeasedJob job = readLeaseReply();
+                    if (job != null) {
+                        jobs.add(job);
+                    }
+                } catch (ResponseException re) {
+                    if (error == null) {
+                        error = re;
+                    }
+                }
+            }
+            inSync = true;
+
+            if (error != null) {
+                if (jobs.isEmpty()) {
+                    throw error;
+                }
+                LOG.warn("Error leasing jobs", error);
+            }
+
+            return jobs;
         } catch (IOException ioe) {
             LOG.error("Error writing command to server", ioe);
             throw new NetworkException("Error writing command to server", ioe);
         } catch (NumberFormatException nfe) {
             LOG.error("Response was malformed", nfe);
             throw new ResponseMalformedException();
+        } finally {
+            endCommand(event, null);
+            releaseCommand(inSync);
         }
     }
 
+    /**
+     * Mark a leased job as successfully completed.
+     * Wraps the "complete" command: https://github.com/iamduo/workq/blob/master/doc/protocol.md#complete
+     *
+     * @param id     The id of the leased job
+     * @param result The result payload, may be empty
+     * @throws WorkqException
+     */
+    public void complete(UUID id, byte[] result) throws WorkqException {
+        sendResult("complete", id, result);
+    }
+
+    /**
+     * Mark a leased job as failed.
+     * Wraps the "fail" command: https://github.com/iamduo/workq/blob/master/doc/protocol.md#fail
+     *
+     * @param id     The id of the leased job
+     * @param result The result payload, may be empty
+     * @throws WorkqException
+     */
+    public void fail(UUID id, byte[] result) throws WorkqException {
+        sendResult("fail", id, result);
+    }
+
+    /**
+     * Report a batch of results by pipelining a "complete" or "fail" command for each in a single write, then reading
+     * every reply.
+     * <p>
+     * Replies are appended to replies as they are read: null for "+OK", or the {@link ResponseException} the server
+     * returned for that result. If the connection drops part-way through, replies.size() is the number of results
+     * the server acknowledged, and the rest need to be reported again.
+     *
+     * @param results The results to report, "complete" is sent for successful ones and "fail" for the rest
+     * @param replies Receives one entry per acknowledged result, in the same order as results
+     * @throws WorkqException If the connection failed or a reply was malformed
+     */
+    public void report(List<JobResult> results, List<ResponseException> replies) throws WorkqException {
+        CommandEvent event = beginCommand("report");
+        boolean inSync = false;
+        try {
+            for (JobResult result : results) {
+                byte[] data = result.getResult() != null ? result.getResult() : new byte[0];
+                String convertedCommand = String.format(
+                        "%s %s %d",
+                        result.isSuccess() ? "complete" : "fail",
+                        result.getId().toString(),
+                        data.length
+                );
+                writeCommand(convertedCommand, data);
+            }
+            out.flush();
+
+            for (int i = 0; i < results.size(); i++) {
+                String statusLine = readLine();
+                LOG.info(statusLine);
+
+                try {
+                    // Collected rather than thrown, so there is no stack worth capturing
+                    checkOk(statusLine, false);
+                    replies.add(null);
+                } catch (ResponseException re) {
+                    replies.add(re);
+                }
+            }
+            inSync = true;
+        } catch (IOException ioe) {
+            LOG.error("Error writing command to server", ioe);
+            throw new NetworkException("Error writing command to server", ioe);
+        } finally {
+            endCommand(event, null);
+            releaseCommand(inSync);
+        }
+    }
+
+    private void sendResult(String commandName, UUID id, byte[] result) throws WorkqException {
+        if (result == null) {
+            result = new byte[0];
+        }
+
+        CommandEvent event = beginCommand(commandName);
+        boolean inSync = false;
+        try {
+            String convertedCommand = String.format("%s %s %d", commandName, id.toString(), result.length);
+
+            LOG.info(convertedCommand);
+            writeCommand(convertedCommand, result);
+            out.flush();
+
+            String statusLine = readLine();
+            LOG.info(statusLine);
+
+            checkOk(statusLine, stackTraces);
+            inSync = true;
+        } catch (ResponseException re) {
+            inSync = true;
+            throw re;
+        } catch (IOException ioe) {
+            LOG.error("Error writing command to server", ioe);
+            throw new NetworkException("Error writing command to server", ioe);
+        } finally {
+            endCommand(event, null);
+            releaseCommand(inSync);
+        }
+    }
+
+    /**
+     * Send a command that replies with a job result, and leave the result payload on the connection
+     *
+     * @return The result, holding the connection until it is closed
+     */
+    private StreamingJobResult sendForResult(String commandName, String jobName, String convertedCommand, byte[] data,
+                                             Deadline deadline, boolean stackTraces) throws WorkqException {
+        CommandEvent event = beginCommand(commandName, deadline);
+        StreamingJobResult result = null;
+        boolean inSync = false;
+        try {
+
+            LOG.info(convertedCommand);
+            writeCommand(convertedCommand, data);
+            out.flush();
+
+            String statusLine = readLine();
+            LOG.info(statusLine);
+
+            Integer count;
+            try {
+                count = checkOkWithReply(statusLine, stackTraces);
+            } catch (ResponseException re) {
+                inSync = true;
+                throw re;
+            }
+            if (count != 1) {
+                throw new ResponseMalformedException();
+            }
+
+            // The format is <id> <success> <result-size>
+            String[] parts = readLine().split(" ");
+            if (parts.length != 3) {
+                throw new ResponseMalformedException();
+            }
+
+            long size = Long.parseLong(parts[2]);
+            if (size < 0) {
+                throw new ResponseMalformedException();
+            }
+
+            result = new StreamingJobResult(this, in, UUID.fromString(parts[0]), "1".equals(parts[1]), size);
+            return result;
+        } catch (UnsupportedEncodingException uee) {
+            LOG.error("Invalid encoding used to convert payload", uee);
+            throw new WorkqException("Invalid encoding used to convert payload", uee);
+        } catch (IOException ioe) {
+            LOG.error("Error writing command to server", ioe);
+            throw networkFailure("Error writing command to server", ioe);
+        } catch (IllegalArgumentException iae) {
+            // Also covers NumberFormatException
+            LOG.error("Response was malformed", iae);
+            throw new ResponseMalformedException();
+        } finally {
+            endCommand(event, jobName);
+            if (result == null) {
+                releaseCommand(inSync);
+            }
+        }
+    }
+
+    /**
+     * Read a streamed result's payload into memory and give the connection back
+     */
+    private JobResult readFully(StreamingJobResult streamingResult) throws WorkqException {
+        try {
+            JobResult result = new JobResult();
+            result.setId(streamingResult.getId());
+            result.setSuccess(streamingResult.isSuccess());
+            result.setResult(streamingResult.toByteArray());
+            return result;
+        } catch (IOException ioe) {
+            LOG.error("Error reading result from server", ioe);
+            throw networkFailure("Error reading result from server", ioe);
+        } finally {
+            streamingResult.close();
+        }
+    }
+
+    /**
+     * Called by a {@link StreamingJobResult} once its payload has been consumed or skipped
+     *
+     * @param discard Whether the connection is no longer in a usable state and has to be closed
+     */
+    void releaseConnection(boolean discard) {
+        if (discard) {
+            discard(socket);
+        }
+        release();
+    }
+
+    /**
+     * Give the connection back after a command. A command that failed part-way through a reply, or on a broken
+     * connection, leaves the connection out of step with the server, so it is discarded and the next command
+     * reconnects.
+     *
+     * @param inSync Whether every reply to the command was read in full
+     */
+    private void releaseCommand(boolean inSync) {
+        if (!inSync) {
+            discard(socket);
+        }
+        release();
+    }
+
+    /**
+     * Give the connection back, disarming the watchdog of the command that held it
+     */
+    private void release() {
+        if (watchdog != null) {
+            watchdog.disarm();
+            watchdog = null;
+        }
+        deadline = null;
+        connectionPermit.release();
+    }
+
+    /**
+     * Close a connection that is no longer in a usable state, so the next command reconnects
+     */
+    private void discard(Socket socket) {
+        synchronized (socketGuard) {
+            // A socket that has already been replaced was closed when it was discarded
+            if (socket != this.socket) {
+                return;
+            }
+            discarded = true;
+            ConnectionEvent event = new ConnectionEvent();
+            event.begin();
+            commitConnectionEvent(event, ConnectionEvent.DISCARD);
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                LOG.warn("Error closing connection", ioe);
+            }
+        }
+    }
+
+    /**
+     * An IOException while holding the connection is the deadline's doing if it has passed, as the watchdog closes
+     * the socket underneath the command
+     */
+    private WorkqException networkFailure(String message, IOException ioe) {
+        if (deadline != null && deadline.isExpired()) {
+            return new DeadlineExceededException("Deadline passed: " + message, ioe);
+        }
+        return new NetworkException(message, ioe);
+    }
+
+    /**
+     * Close the connection to the server
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        // Deliberately not waiting for the connection, so a blocked command can be aborted from another thread
+        if (socket != null) {
+            ConnectionEvent event = new ConnectionEvent();
+            event.begin();
+            socket.close();
+            commitConnectionEvent(event, ConnectionEvent.CLOSE);
+        }
+    }
+
+    /**
+     * Wait for the connection and start recording a command. JFR events cost next to nothing unless they are enabled
+     * in a recording, in which case they capture the command's latency, traffic and outcome.
+     *
+     * @param commandName The command, for the {@link CommandEvent}
+     * @return The begun event, to be passed to {@link #endCommand(CommandEvent, String)} while holding the connection
+     */
+    private CommandEvent beginCommand(String commandName) throws WorkqException {
+        return beginCommand(commandName, null);
+    }
+
+    /**
+     * Wait for the connection until the deadline, if there is one, and arm a watchdog that closes the connection if
+     * the command is still holding it once the deadline passes. A connection discarded by an earlier command is
+     * reopened here.
+     *
+     * @throws DeadlineExceededException If the deadline passed while waiting for the connection
+     */
+    private CommandEvent beginCommand(String commandName, Deadline deadline) throws WorkqException {
+        CommandEvent event = new CommandEvent();
+        event.begin();
+
+        if (!connectionPermit.tryAcquire()) {
+            ConnectionWaitEvent waitEvent = new ConnectionWaitEvent();
+            waitEvent.begin();
+            if (deadline == null) {
+                connectionPermit.acquireUninterruptibly();
+            } else {
+                try {
+                    if (!connectionPermit.tryAcquire(deadline.remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS)) {
+                        throw new DeadlineExceededException("Deadline passed waiting for the connection");
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new WorkqException("Interrupted waiting for the connection", ie);
+                }
+            }
+            if (waitEvent.shouldCommit()) {
+                waitEvent.setCommand(commandName);
+                waitEvent.commit();
+            }
+        }
+
+        if (discarded) {
+            try {
+                reconnect(deadline);
+            } catch (SocketTimeoutException ste) {
+                connectionPermit.release();
+                throw new DeadlineExceededException("Deadline passed reconnecting to workq host", ste);
+            } catch (IOException ioe) {
+                connectionPermit.release();
+                LOG.error("Error reconnecting to workq host", ioe);
+                throw new NetworkException("Error reconnecting to workq host", ioe);
+            }
+        }
+
+        if (deadline != null) {
+            long remaining = deadline.remaining(TimeUnit.NANOSECONDS);
+            if (remaining <= 0) {
+                connectionPermit.release();
+                throw new DeadlineExceededException("Deadline passed waiting for the connection");
+            }
+            this.deadline = deadline;
+            this.watchdog = new Watchdog(socket);
+            this.watchdog.arm(remaining);
+        }
+
+        bytesWritten = 0;
+        bytesRead = 0;
+        replyStatus = ERROR;
+        this.commandName = commandName;
+        return event;
+    }
+
+    /**
+     * Finish recording a command. For pipelined commands the status is that of the last reply.
+     */
+    private void endCommand(CommandEvent event, String jobName) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.setCommand(commandName);
+            event.setJobName(jobName);
+            event.setBytesWritten(bytesWritten);
+            event.setBytesRead(bytesRead);
+            event.setStatus(replyStatus);
+            event.commit();
+        }
+    }
+
+    private void commitConnectionEvent(ConnectionEvent event, String action) {
+        if (event.shouldCommit()) {
+            event.setHost(host);
+            event.setPort(port);
+            event.setAction(action);
+            event.commit();
+        }
+    }
+
+    /**
+     * Read one reply to a "lease" command
+     *
+     * @return The leased job, or null if the lease timed out
+     */
+    private LeasedJob readLeaseReply() throws IOException, ResponseMalformedException, ResponseException {
+        String statusLine = readLine();
+        LOG.info(statusLine);
+
+        // An idle worker gets a TIMED-OUT for every lease, so don't pay for a stack trace each time
+        int count;
+        try {
+            count = checkOkWithReply(statusLine, false);
+        } catch (ResponseException re) {
+            if (re.getResponseStatus() == ResponseStatus.TIMED_OUT) {
+                return null;
+            }
+            throw re;
+        }
+        if (count != 1) {
+            throw new ResponseMalformedException();
+        }
+
+        // The format is <id> <name> <payload-size>
+        String[] parts = readLine().split(" ");
+        if (parts.length != 3) {
+            throw new ResponseMalformedException();
+        }
+
+        LeasedJob job = new LeasedJob();
+        try {
+            job.setId(UUID.fromString(parts[0]));
+        } catch (IllegalArgumentException iae) {
+            throw new ResponseMalformedException("Response was malformed", iae);
+        }
+        job.setName(parts[1]);
+        job.setPayload(readBody(Integer.parseInt(parts[2])));
+
+        return job;
+    }
+
+    /**
+     * Write a command line, followed by its data block if there is one. Does not flush.
+     *
+     * @param line The command line, without the trailing CRLF
+     * @param data The data block, or null if the command has none
+     */
+    private void writeCommand(String line, byte[] data) throws IOException {
+        byte[] bytes = line.getBytes(encoding);
+        out.write(bytes);
+        out.write(CRLF.getBytes(encoding));
+        bytesWritten += bytes.length + 2;
+        if (data != null) {
+            out.write(data);
+            out.write(CRLF.getBytes(encoding));
+            bytesWritten += data.length + 2;
+        }
+    }
+
+    /**
+     * Read a single CRLF terminated line from the server
+     *
+     * @return The line, without the CRLF
+     */
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length;
+                bytesRead += length + 1;
+                if (length > 0 && bytes[length - 1] == '\r') {
+                    length--;
+                }
+                return new String(bytes, 0, length, encoding);
+            }
+            line.write(b);
+        }
+
+        throw new EOFException("Connection closed by server");
+    }
+
+    /**
+     * Read a data block of a known size, along with its trailing CRLF
+     *
+     * @param size The size of the data block in bytes
+     * @return The data block
+     */
+    private byte[] readBody(int size) throws IOException, ResponseMalformedException {
+        if (size < 0) {
+            throw new ResponseMalformedException();
+        }
+
+        byte[] body = new byte[size];
+        new DataInputStream(in).readFully(body);
+        bytesRead += size + 2;
+        if (in.read() != '\r' || in.read() != '\n') {
+            throw new ResponseMalformedException();
+        }
+
+        return body;
+    }
+
     /**
      * Check a response line for a simple "+OK" message
      *
-     * @param line String the line to check
+     * @param line        String the line to check
+     * @param stackTraces Whether exceptions for error replies capture a stack trace
      * @throws ResponseMalformedException If something unexpected came back
      */
-    private void checkOk(String line) throws ResponseMalformedException, ResponseException {
+    private void checkOk(String line, boolean stackTraces) throws ResponseMalformedException, ResponseException {
         if (line.length() < 3) {
-            throw new ResponseMalformedException();
+            throw new ResponseMalformedException(stackTraces);
         }
 
-        String sign = line.substring(0, 1);
+        char sign = line.charAt(0);
 
-        if ("+".equals(sign) && "OK".equals(line.substring(1, 3))) {
+        if (sign == '+' && line.startsWith("OK", 1)) {
             // Everything went great
+            replyStatus = ResponseStatus.OK.getCode();
             return;
         }
 
-        if (!"-".equals(sign)) {
-            throw new ResponseMalformedException();
+        if (sign != '-') {
+            throw new ResponseMalformedException(stackTraces);
         }
 
-        checkError(line);
+        checkError(line, stackTraces);
     }
 
     /**
      * Check a response line for an "+OK 1" message
      *
-     * @param line String The line to check
+     * @param line        String The line to check
+     * @param stackTraces Whether exceptions for error replies capture a stack trace
      * @throws ResponseMalformedException If something unexpected came back from the server
      */
-    private int checkOkWithReply(String line) throws ResponseMalformedException, ResponseException {
-        if (line.length() < 5) {
-            throw new ResponseMalformedException();
+    private int checkOkWithReply(String line, boolean stackTraces)
+            throws ResponseMalformedException, ResponseException {
+        if (line.length() < 3) {
+            throw new ResponseMalformedException(stackTraces);
         }
 
-        String sign = line.substring(0, 1);
+        char sign = line.charAt(0);
 
-        if ("+".equals(sign) && "OK".equals(line.substring(1, 3))) {
+        if (sign == '+' && line.startsWith("OK ", 1) && line.length() >= 5) {
             Integer reply = Integer.valueOf(line.substring(4));
+            replyStatus = ResponseStatus.OK.getCode();
             return reply;
         }
 
-        if (!"-".equals(sign)) {
-            throw new ResponseMalformedException();
+        if (sign != '-') {
+            throw new ResponseMalformedException(stackTraces);
         }
 
-        checkError(line);
+        checkError(line, stackTraces);
         return 0;
     }
 
     /**
-     * Parse an error line into a {@link ResponseException}
-     * @param line String the Error Line to check
+     * Throw the error on an error line
+     *
+     * @param line        String the Error Line to check
+     * @param stackTraces Whether the exception captures a stack trace
      * @throws ResponseMalformedException If something unexpected came back from the server
      * @throws ResponseException The error from the server
      */
-    private void checkError(String line) throws ResponseMalformedException, ResponseException {
+    private void checkError(String line, boolean stackTraces) throws ResponseMalformedException, ResponseException {
+        ResponseException error = parseError(line, stackTraces);
+        replyStatus = error.getResponseErrorCode();
+        throw error;
+    }
+
+    /**
+     * Parse an error line into a {@link ResponseException}. Known error codes are replaced by their interned
+     * {@link ResponseStatus} code, so they don't cost a new string per error.
+     *
+     * @param line        String the Error Line to parse, starting with "-"
+     * @param stackTraces Whether the exception captures a stack trace
+     * @return The error from the server
+     * @throws ResponseMalformedException If the line isn't a well formed error
+     */
+    static ResponseException parseError(String line, boolean stackTraces) throws ResponseMalformedException {
         // The format is -CODE TEXT
-        String[] parts = line.split(" ", 2);
+        int space = line.indexOf(' ');
 
-        String code = parts[0];
+        String code = space == -1 ? line.substring(1) : line.substring(1, space);
         String text = "";
 
-        if (code.length() <= 1) {
-            throw new ResponseMalformedException();
+        if (code.length() == 0) {
+            throw new ResponseMalformedException(stackTraces);
         }
 
-        // Strip the "-" off the beginning
-        code = code.substring(1);
+        ResponseStatus status = ResponseStatus.fromCode(code);
+        if (status != ResponseStatus.UNKNOWN) {
+            code = status.getCode();
+        }
 
-        if (parts.length == 2) {
-            text = parts[1];
+        if (space != -1) {
+            text = line.substring(space + 1);
 
             if (text.length() == 0) {
-                throw new ResponseMalformedException();
+                throw new ResponseMalformedException(stackTraces);
             }
         }
 
-        throw new ResponseException(code, text);
+        return new ResponseException(code, text, stackTraces);
     }
 
     public String getEncoding() {
@@ -282,11 +1205,164 @@ public class WorkqClient {
         this.port = port;
     }
 
+    public DuplicateFilter getDuplicateFilter() {
+        return duplicateFilter;
+    }
+
+    /**
+     * @param duplicateFilter {@link DuplicateFilter} Filter that lets {@link #add(BackgroundJob)} skip jobs the server
+     *                        already acknowledged, or null to send every job
+     */
+    public void setDuplicateFilter(DuplicateFilter duplicateFilter) {
+        this.duplicateFilter = duplicateFilter;
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * @param resultCache {@link ResultCache} Cache for the results of {@link #run(ForegroundJob)}, or null to run every
+     *                    job. Only set this if every job run through this client is deterministic.
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Limit how fast jobs are sent per name. Checked before each "add" and "run", after the duplicate filter and
+     * result cache, so jobs they answer don't use up the limit.
+     *
+     * @param rateLimiter The limiter, or null for no limits
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public boolean isStackTraces() {
+        return stackTraces;
+    }
+
+    /**
+     * @param stackTraces Whether exceptions for error replies capture a stack trace. Capturing one costs far more than
+     *                    the rest of a command, so turn this off if errors such as TIMED-OUT are common and handled.
+     *                    The try methods never capture one.
+     */
+    public void setStackTraces(boolean stackTraces) {
+        this.stackTraces = stackTraces;
+    }
+
     public Socket getSocket() {
         return socket;
     }
 
+    /**
+     * Replace the connection. Waits for the command holding the current connection to finish, but gives up after
+     * SET_SOCKET_TIMEOUT milliseconds, as a {@link StreamingJobResult} that is never closed holds it for good.
+     *
+     * @param socket The new connection
+     * @throws IllegalStateException If the current connection stayed in use, or the thread was interrupted
+     * @throws UncheckedIOException  If the socket's streams could not be opened
+     */
     public void setSocket(Socket socket) {
-        this.socket = socket;
+        try {
+            if (!connectionPermit.tryAcquire(SET_SOCKET_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("Connection still in use, is a StreamingJobResult left open?");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for the connection", ie);
+        }
+
+        try {
+            useSocket(socket);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Error opening streams of socket", ioe);
+        } finally {
+            connectionPermit.release();
+        }
+    }
+
+    private void useSocket(Socket socket) throws IOException {
+        synchronized (socketGuard) {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            discarded = false;
+        }
+    }
+
+    /**
+     * Replace a discarded connection, while holding the connection permit. The watchdog isn't armed yet, so a deadline
+     * bounds the connect itself.
+     *
+     * @throws SocketTimeoutException If the deadline passed before the connection was established
+     */
+    private void reconnect(Deadline deadline) throws IOException {
+        ConnectionEvent event = new ConnectionEvent();
+        event.begin();
+        Socket socket = new Socket();
+        try {
+            InetSocketAddress address = new InetSocketAddress(host, port);
+            if (deadline == null) {
+                socket.connect(address);
+            } else {
+                // A connect timeout of 0 waits forever, so round up anything left to at least a millisecond
+                long remaining = deadline.remaining(TimeUnit.NANOSECONDS);
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Deadline passed before connecting");
+                }
+                long millis = TimeUnit.NANOSECONDS.toMillis(remaining + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+                socket.connect(address, (int) Math.min(millis, Integer.MAX_VALUE));
+            }
+        } catch (IOException ioe) {
+            socket.close();
+            throw ioe;
+        }
+        socket.setTcpNoDelay(true);
+        useSocket(socket);
+        commitConnectionEvent(event, ConnectionEvent.OPEN);
+    }
+
+    /**
+     * Discards the connection of a command that is still holding it once its deadline passes. Disarming and firing
+     * both take the socket guard, so once {@link #disarm()} returns the watchdog can no longer close the socket under
+     * the next command.
+     */
+    private class Watchdog implements Runnable {
+
+        private final Socket socket;
+        private boolean armed = true;
+        private ScheduledFuture<?> future;
+
+        private Watchdog(Socket socket) {
+            this.socket = socket;
+        }
+
+        private void arm(long nanos) {
+            future = WATCHDOG.schedule(this, nanos, TimeUnit.NANOSECONDS);
+        }
+
+        public void run() {
+            synchronized (socketGuard) {
+                if (!armed) {
+                    return;
+                }
+                armed = false;
+                LOG.warn("Deadline passed, closing connection");
+                discard(socket);
+            }
+        }
+
+        private void disarm() {
+            synchronized (socketGuard) {
+                armed = false;
+            }
+            future.cancel(false);
+        }
     }
 }
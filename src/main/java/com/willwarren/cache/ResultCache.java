@@ -0,0 +1,393 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Will Warren
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.willwarren.cache;
+
+import com.willwarren.exceptions.DeadlineExceededException;
+import com.willwarren.exceptions.ResponseException;
+import com.willwarren.exceptions.WorkqException;
+import com.willwarren.model.Deadline;
+import com.willwarren.model.ForegroundJob;
+import com.willwarren.model.JobResult;
+import com.willwarren.model.ResponseStatus;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the results of {@link ForegroundJob}s that are pure functions of their name and payload.
+ * <p>
+ * Results are keyed by job name and a SHA-256 digest of the payload, and evicted least recently used first once
+ * maxEntries or maxBytes is exceeded, or when they are older than the ttl. Only successful results are cached.
+ * Result payloads can be kept off-heap in direct buffers.
+ * <p>
+ * Concurrent lookups for the same key while nothing is cached share a single load: one caller runs the job and the
+ * others wait for its result. Those callers get the result with their own job id, although their jobs were never
+ * sent to the server.
+ */
+public class ResultCache {
+
+    /**
+     * Produces a result on a cache miss
+     */
+    public interface Loader {
+        JobResult load() throws WorkqException;
+    }
+
+    private final static ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new IllegalStateException("SHA-256 is not available", nsae);
+            }
+        }
+    };
+
+    private static class Key {
+        final String name;
+        final byte[] digest;
+        final int hash;
+
+        Key(String name, byte[] digest) {
+            this.name = name;
+            this.digest = digest;
+            this.hash = 31 * name.hashCode() + Arrays.hashCode(digest);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return name.equals(other.name) && Arrays.equals(digest, other.digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static class Entry {
+        final byte[] heapBody;
+        final ByteBuffer directBody;
+        final int size;
+        final long storedAt;
+
+        Entry(byte[] body, boolean offHeap, long storedAt) {
+            this.size = body.length;
+            this.storedAt = storedAt;
+            if (offHeap) {
+                this.heapBody = null;
+                this.directBody = ByteBuffer.allocateDirect(body.length);
+                this.directBody.put(body).flip();
+            } else {
+                this.heapBody = body.clone();
+                this.directBody = null;
+            }
+        }
+
+        byte[] body() {
+            if (heapBody != null) {
+                return heapBody.clone();
+            }
+            byte[] body = new byte[size];
+            directBody.duplicate().get(body);
+            return body;
+        }
+    }
+
+    private static class Load {
+        final CompletableFuture<JobResult> result = new CompletableFuture<JobResult>();
+        // Milliseconds the loading caller could give the job, which bounds how long the server ran it
+        final long timeout;
+
+        Load(long timeout) {
+            this.timeout = timeout;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttl;
+    private final boolean offHeap;
+
+    // Access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private long bytes;
+
+    private final ConcurrentMap<Key, Load> inFlight = new ConcurrentHashMap<Key, Load>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * @param maxEntries Most results cached at once
+     * @param maxBytes   Most result payload bytes cached at once
+     * @param ttl        Milliseconds a result stays cached, or 0 to keep it until it is evicted
+     * @param offHeap    Whether result payloads are stored in direct buffers outside the Java heap
+     */
+    public ResultCache(int maxEntries, long maxBytes, long ttl, boolean offHeap) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Look up the result for a job, loading it on a miss. If another thread is already loading the same result, wait
+     * for that instead.
+     *
+     * @param job    {@link ForegroundJob} The job to look up by name and payload
+     * @param loader Runs the job on a miss
+     * @return The cached or loaded result, with the job's own id
+     * @throws WorkqException Whatever the loader threw
+     */
+    public JobResult get(ForegroundJob job, Loader loader) throws WorkqException {
+        return get(job, null, loader);
+    }
+
+    /**
+     * Look up the result for a job, loading it on a miss. If another thread is already loading the same result, wait
+     * for that instead, but no later than the deadline. If that load fails because its own deadline passed, or the
+     * server timed it out sooner than this caller's timeout and deadline would have, load the result rather than share
+     * the failure.
+     *
+     * @param job      {@link ForegroundJob} The job to look up by name and payload
+     * @param deadline When to stop waiting for another thread's load, or null to wait for it to finish
+     * @param loader   Runs the job on a miss, and is expected to keep to the deadline itself
+     * @return The cached or loaded result, with the job's own id
+     * @throws DeadlineExceededException If the deadline passed while waiting for another thread's load
+     * @throws WorkqException            Whatever the loader threw
+     */
+    public JobResult get(ForegroundJob job, Deadline deadline, Loader loader) throws WorkqException {
+        Key key = keyFor(job);
+
+        while (true) {
+            JobResult cached = lookup(key, job);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached;
+            }
+
+            Load load = new Load(timeoutFor(job, deadline));
+            Load existing = inFlight.putIfAbsent(key, load);
+            if (existing == null) {
+                return load(key, load, job, loader);
+            }
+
+            coalesced.incrementAndGet();
+            JobResult shared = await(existing, job, deadline);
+            if (shared != null) {
+                return withId(shared, job);
+            }
+            // The other load ran out of time, which says nothing about whether this caller would
+        }
+    }
+
+    /**
+     * Run the loader for a key this thread claimed, and share the outcome with threads waiting for it
+     */
+    private JobResult load(Key key, Load load, ForegroundJob job, Loader loader) throws WorkqException {
+        try {
+            // Another load may have finished between the lookup and claiming the key
+            JobResult cached = lookup(key, job);
+            if (cached != null) {
+                hits.incrementAndGet();
+                load.result.complete(cached);
+                return cached;
+            }
+
+            misses.incrementAndGet();
+            JobResult result = loader.load();
+            if (result.isSuccess() && result.getResult() != null) {
+                store(key, result.getResult());
+            }
+            load.result.complete(result);
+            return result;
+        } catch (WorkqException we) {
+            load.result.completeExceptionally(we);
+            throw we;
+        } catch (RuntimeException re) {
+            load.result.completeExceptionally(re);
+            throw re;
+        } finally {
+            inFlight.remove(key, load);
+        }
+    }
+
+    /**
+     * Drop every cached result
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return Result payload bytes currently cached
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Number of lookups that waited for another thread's load instead of running the job themselves
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    private synchronized JobResult lookup(Key key, ForegroundJob job) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        if (ttl > 0 && System.nanoTime() - entry.storedAt > ttl) {
+            entries.remove(key);
+            bytes -= entry.size;
+            return null;
+        }
+
+        JobResult result = new JobResult();
+        result.setId(job.getId());
+        result.setSuccess(true);
+        result.setResult(entry.body());
+        return result;
+    }
+
+    private synchronized void store(Key key, byte[] body) {
+        if (body.length > maxBytes || maxEntries < 1) {
+            return;
+        }
+
+        Entry previous = entries.put(key, new Entry(body, offHeap, System.nanoTime()));
+        if (previous != null) {
+            bytes -= previous.size;
+        }
+        bytes += body.length;
+
+        Iterator<Entry> leastRecentlyUsed = entries.values().iterator();
+        while (entries.size() > maxEntries || bytes > maxBytes) {
+            bytes -= leastRecentlyUsed.next().size;
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    /**
+     * Wait for another thread's load
+     *
+     * @return Its result, or null if it failed because its deadline passed or the server timed out a job that this
+     * caller would have given longer
+     */
+    private JobResult await(Load load, ForegroundJob job, Deadline deadline) throws WorkqException {
+        Throwable cause;
+        try {
+            if (deadline == null) {
+                return load.result.join();
+            }
+            return load.result.get(deadline.remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        } catch (CompletionException ce) {
+            cause = ce.getCause();
+        } catch (ExecutionException ee) {
+            cause = ee.getCause();
+        } catch (TimeoutException te) {
+            throw new DeadlineExceededException("Deadline passed waiting for another caller's result", te);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new WorkqException("Interrupted waiting for another caller's result", ie);
+        }
+
+        if (cause instanceof DeadlineExceededException) {
+            return null;
+        }
+        if (cause instanceof ResponseException
+                && ((ResponseException) cause).getResponseStatus() == ResponseStatus.TIMED_OUT
+                && timeoutFor(job, deadline) > load.timeout) {
+            return null;
+        }
+        if (cause instanceof WorkqException) {
+            throw (WorkqException) cause;
+        }
+        throw new WorkqException("Error loading result", cause);
+    }
+
+    /**
+     * @return Milliseconds a caller can give the job: its timeout, if it has one, or less if the deadline is sooner
+     */
+    private static long timeoutFor(ForegroundJob job, Deadline deadline) {
+        long timeout = job.getTimeout() != null ? job.getTimeout() : Long.MAX_VALUE;
+        if (deadline != null) {
+            timeout = Math.min(timeout, deadline.remaining(TimeUnit.MILLISECONDS));
+        }
+        return timeout;
+    }
+
+    private JobResult withId(JobResult result, ForegroundJob job) {
+        JobResult copy = new JobResult();
+        copy.setId(job.getId());
+        copy.setSuccess(result.isSuccess());
+        copy.setResult(result.getResult() != null ? result.getResult().clone() : null);
+        return copy;
+    }
+
+    private Key keyFor(ForegroundJob job) {
+        MessageDigest digest = SHA256.get();
+        digest.reset();
+        return new Key(job.getName(), digest.digest(job.getPayload()));
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Will Warren
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.willwarren.dedup;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the ids of recently acknowledged jobs so resubmissions can be skipped without a round trip.
+ * <p>
+ * Ids are kept for a fixed window after they were acknowledged, in a number of independently locked stripes that
+ * each hold at most maxEntries / stripes ids. When a stripe is full the oldest id in it is forgotten, so memory use
+ * is bounded no matter how many jobs are submitted within the window.
+ */
+public class DuplicateFilter {
+
+    private final static int DEFAULT_STRIPES = 16;
+
+    private final long window;
+    private final Stripe[] stripes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Ids acknowledged in this stripe, oldest first, with the {@link System#nanoTime()} of their acknowledgement
+     */
+    private static class Stripe extends LinkedHashMap<UUID, Long> {
+
+        private final int capacity;
+
+        Stripe(int capacity) {
+            super(16, 0.75f, false);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, Long> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    /**
+     * @param window     Milliseconds an acknowledged id is remembered for
+     * @param maxEntries Most ids remembered at once
+     */
+    public DuplicateFilter(long window, int maxEntries) {
+        this(window, maxEntries, DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param window     Milliseconds an acknowledged id is remembered for
+     * @param maxEntries Most ids remembered at once
+     * @param stripes    Number of independently locked stripes, rounded up to a power of two
+     */
+    public DuplicateFilter(long window, int maxEntries, int stripes) {
+        int stripeCount = 1;
+        while (stripeCount < stripes) {
+            stripeCount <<= 1;
+        }
+        int stripeCapacity = Math.max(1, maxEntries / stripeCount);
+
+        this.window = TimeUnit.MILLISECONDS.toNanos(window);
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            this.stripes[i] = new Stripe(stripeCapacity);
+        }
+    }
+
+    /**
+     * Check whether a job with this id was acknowledged within the window
+     *
+     * @param id The job id
+     * @return true if the job can be skipped
+     */
+    public boolean isDuplicate(UUID id) {
+        Stripe stripe = stripeFor(id);
+        long now = System.nanoTime();
+        boolean duplicate;
+
+        synchronized (stripe) {
+            expire(stripe, now);
+            duplicate = stripe.containsKey(id);
+        }
+
+        if (duplicate) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return duplicate;
+    }
+
+    /**
+     * Remember that the server acknowledged a job with this id
+     *
+     * @param id The job id
+     */
+    public void acknowledged(UUID id) {
+        Stripe stripe = stripeFor(id);
+        long now = System.nanoTime();
+
+        synchronized (stripe) {
+            expire(stripe, now);
+            // Re-insert so the id moves to the young end of the stripe
+            stripe.remove(id);
+            stripe.put(id, now);
+        }
+    }
+
+    /**
+     * @return Number of ids currently remembered, including any that expired but haven't been purged yet
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return Number of submissions found to be duplicates
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Number of submissions found not to be duplicates
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Share of checked submissions that were duplicates, between 0 and 1
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public void resetStats() {
+        hits.set(0);
+        misses.set(0);
+    }
+
+    public long getWindow() {
+        return TimeUnit.NANOSECONDS.toMillis(window);
+    }
+
+    private Stripe stripeFor(UUID id) {
+        int h = id.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (stripes.length - 1)];
+    }
+
+    /**
+     * Drop ids acknowledged longer than the window ago. Must be called holding the stripe's lock.
+     */
+    private void expire(Stripe stripe, long now) {
+        Iterator<Long> acknowledgedAt = stripe.values().iterator();
+        while (acknowledgedAt.hasNext() && now - acknowledgedAt.next() > window) {
+            acknowledgedAt.remove();
+        }
+    }
+}
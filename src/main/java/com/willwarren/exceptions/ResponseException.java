@@ -24,6 +24,8 @@
 
 package com.willwarren.exceptions;
 
+import com.willwarren.model.ResponseStatus;
+
 public class ResponseException extends WorkqException {
 
     private String responseErrorCode;
@@ -34,6 +36,20 @@ public class ResponseException extends WorkqException {
         this.responseErrorText = responseErrorText;
     }
 
+    /**
+     * Constructs a new exception for an error reply, which only captures a stack trace if writableStackTrace is
+     * true. Expected errors such as TIMED-OUT can be created without one to keep them cheap.
+     *
+     * @param responseErrorCode  the error code, without the leading "-"
+     * @param responseErrorText  the error text, may be empty
+     * @param writableStackTrace whether or not the stack trace should be captured
+     */
+    public ResponseException(String responseErrorCode, String responseErrorText, boolean writableStackTrace) {
+        super(null, null, writableStackTrace);
+        this.responseErrorCode = responseErrorCode;
+        this.responseErrorText = responseErrorText;
+    }
+
     public String getResponseErrorCode() {
         return responseErrorCode;
     }
@@ -42,6 +58,13 @@ public class ResponseException extends WorkqException {
         this.responseErrorCode = responseErrorCode;
     }
 
+    /**
+     * @return {@link ResponseStatus} The error code as a status, UNKNOWN for codes this client doesn't know
+     */
+    public ResponseStatus getResponseStatus() {
+        return ResponseStatus.fromCode(responseErrorCode);
+    }
+
     public String getResponseErrorText() {
         return responseErrorText;
     }
@@ -82,4 +82,14 @@ public class ResponseMalformedException extends WorkqException {
     public ResponseMalformedException(Throwable cause) {
         super(cause);
     }
+
+    /**
+     * Constructs a new exception with the default detail message, which only captures a stack trace if
+     * writableStackTrace is true.
+     *
+     * @param writableStackTrace whether or not the stack trace should be captured
+     */
+    public ResponseMalformedException(boolean writableStackTrace) {
+        super("Response was malformed", null, writableStackTrace);
+    }
 }
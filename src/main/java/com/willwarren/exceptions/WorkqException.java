@@ -81,4 +81,17 @@ public class WorkqException extends Exception {
     public WorkqException(Throwable cause) {
         super(cause);
     }
+
+    /**
+     * Constructs a new exception with the specified detail message and cause, which only captures a stack trace if
+     * writableStackTrace is true. Skipping the stack trace makes the exception much cheaper to create, for outcomes
+     * that are expected and handled by the caller.
+     *
+     * @param message            the detail message
+     * @param cause              the cause, may be null
+     * @param writableStackTrace whether or not the stack trace should be captured
+     */
+    protected WorkqException(String message, Throwable cause, boolean writableStackTrace) {
+        super(message, cause, writableStackTrace, writableStackTrace);
+    }
 }
@@ -0,0 +1,267 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Will Warren
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.willwarren.fanout;
+
+import com.willwarren.WorkqClient;
+import com.willwarren.exceptions.WorkqException;
+import com.willwarren.model.Deadline;
+import com.willwarren.model.ForegroundJob;
+import com.willwarren.model.JobResult;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many {@link ForegroundJob}s in parallel and gathers their results as they come back.
+ * <p>
+ * A "run" holds its connection until the job's result is in, so the jobs are spread over a pool of connections, each
+ * with a thread of its own. How many jobs are in flight at once is the number of connections. Errors are collected
+ * rather than thrown, so the pooled clients don't capture stack traces for them.
+ */
+public class FanOut implements Closeable {
+
+    private final Log LOG = LogFactory.getLog(FanOut.class);
+
+    private final List<WorkqClient> allClients = new ArrayList<WorkqClient>();
+    private final BlockingQueue<WorkqClient> clients;
+    private final ExecutorService executor;
+
+    /**
+     * @param host        The workq host
+     * @param port        The workq port
+     * @param connections How many connections, and so jobs in flight, to use
+     * @throws IOException If a connection could not be opened
+     */
+    public FanOut(String host, int port, int connections) throws IOException {
+        this.clients = new ArrayBlockingQueue<WorkqClient>(connections);
+        try {
+            for (int i = 0; i < connections; i++) {
+                WorkqClient client = new WorkqClient(host, port);
+                client.setStackTraces(false);
+                allClients.add(client);
+                clients.add(client);
+            }
+        } catch (IOException ioe) {
+            closeClients();
+            throw ioe;
+        }
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(connections, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "workq-fanout-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Run all the jobs and wait for every one of them to come back
+     *
+     * @param jobs The jobs to run, each with its own id
+     * @return Results and errors by job id
+     * @throws InterruptedException If interrupted while waiting, in which case unsent jobs aren't sent
+     */
+    public FanOutResult runAll(Collection<ForegroundJob> jobs) throws InterruptedException {
+        return runAll(jobs, jobs.size(), null);
+    }
+
+    /**
+     * Run all the jobs and wait for them until the deadline. Each job's timeout is cut down to fit the deadline, and
+     * jobs that haven't come back by then are returned as pending.
+     *
+     * @param jobs     The jobs to run, each with its own id
+     * @param deadline When to stop waiting
+     * @return Results and errors by job id, and the ids of jobs still pending
+     * @throws InterruptedException If interrupted while waiting, in which case unsent jobs aren't sent
+     */
+    public FanOutResult runAll(Collection<ForegroundJob> jobs, Deadline deadline) throws InterruptedException {
+        return runAll(jobs, jobs.size(), deadline);
+    }
+
+    /**
+     * Run the jobs until quorum of them have succeeded, the rest can no longer reach the quorum, or the deadline
+     * passes. Jobs not yet sent once the wait is over are never sent. Jobs already running are left to finish on
+     * their connections, and their results are dropped.
+     *
+     * @param jobs     The jobs to run, each with its own id
+     * @param quorum   How many successful results to wait for
+     * @param deadline When to stop waiting, or null to wait for the quorum
+     * @return Results and errors by job id, and the ids of jobs still pending
+     * @throws InterruptedException If interrupted while waiting, in which case unsent jobs aren't sent
+     */
+    public FanOutResult runAll(Collection<ForegroundJob> jobs, int quorum, final Deadline deadline)
+            throws InterruptedException {
+        final AtomicBoolean done = new AtomicBoolean();
+        CompletionService<Outcome> completion = new ExecutorCompletionService<Outcome>(executor);
+
+        Set<UUID> pending = new LinkedHashSet<UUID>();
+        for (final ForegroundJob job : jobs) {
+            pending.add(job.getId());
+            completion.submit(new Callable<Outcome>() {
+                public Outcome call() {
+                    return run(job, deadline, done);
+                }
+            });
+        }
+
+        Map<UUID, JobResult> results = new LinkedHashMap<UUID, JobResult>();
+        Map<UUID, WorkqException> errors = new LinkedHashMap<UUID, WorkqException>();
+        int outstanding = jobs.size();
+        int successes = 0;
+        int unsuccessful = 0;
+        try {
+            while (outstanding > 0 && successes < quorum && unsuccessful <= jobs.size() - quorum) {
+                Future<Outcome> future;
+                if (deadline == null) {
+                    future = completion.take();
+                } else {
+                    future = completion.poll(deadline.remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+                    if (future == null) {
+                        break;
+                    }
+                }
+                outstanding--;
+
+                Outcome outcome = outcome(future);
+                if (outcome == null) {
+                    // Not sent, because the deadline had already passed
+                    continue;
+                }
+
+                pending.remove(outcome.id);
+                if (outcome.result != null) {
+                    results.put(outcome.id, outcome.result);
+                    if (outcome.result.isSuccess()) {
+                        successes++;
+                    } else {
+                        unsuccessful++;
+                    }
+                } else {
+                    errors.put(outcome.id, outcome.error);
+                    unsuccessful++;
+                }
+            }
+        } finally {
+            done.set(true);
+        }
+
+        return new FanOutResult(results, errors, new ArrayList<UUID>(pending));
+    }
+
+    /**
+     * Run one job on a pooled connection, unless the fan out is already over
+     *
+     * @return The job's result or error, or null if it wasn't sent
+     */
+    private Outcome run(ForegroundJob job, Deadline deadline, AtomicBoolean done) {
+        if (done.get() || (deadline != null && deadline.isExpired())) {
+            return null;
+        }
+
+        WorkqClient client;
+        try {
+            client = clients.take();
+        } catch (InterruptedException ie) {
+            return null;
+        }
+
+        try {
+            JobResult result = deadline == null ? client.run(job) : client.run(job, deadline);
+            return new Outcome(job.getId(), result, null);
+        } catch (WorkqException we) {
+            return new Outcome(job.getId(), null, we);
+        } finally {
+            clients.add(client);
+        }
+    }
+
+    private Outcome outcome(Future<Outcome> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            // Only completed futures are passed in
+            throw new IllegalStateException("Fan out job not finished", ie);
+        } catch (ExecutionException ee) {
+            // run catches the WorkqExceptions, so this is a bug
+            throw new IllegalStateException("Fan out job failed", ee.getCause());
+        }
+    }
+
+    /**
+     * Stop the threads and close the connections, aborting jobs still running
+     */
+    public void close() {
+        executor.shutdownNow();
+        closeClients();
+    }
+
+    private void closeClients() {
+        for (WorkqClient client : allClients) {
+            try {
+                client.close();
+            } catch (IOException ioe) {
+                LOG.warn("Error closing connection", ioe);
+            }
+        }
+    }
+
+    private static class Outcome {
+
+        private final UUID id;
+        private final JobResult result;
+        private final WorkqException error;
+
+        private Outcome(UUID id, JobResult result, WorkqException error) {
+            this.id = id;
+            this.result = result;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Will Warren
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.willwarren.fanout;
+
+import com.willwarren.exceptions.WorkqException;
+import com.willwarren.model.JobResult;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * What came back from a {@link FanOut}, split into results, errors and jobs that hadn't finished when it returned
+ */
+public class FanOutResult {
+
+    private final Map<UUID, JobResult> results;
+    private final Map<UUID, WorkqException> errors;
+    private final List<UUID> pending;
+
+    FanOutResult(Map<UUID, JobResult> results, Map<UUID, WorkqException> errors, List<UUID> pending) {
+        this.results = Collections.unmodifiableMap(results);
+        this.errors = Collections.unmodifiableMap(errors);
+        this.pending = Collections.unmodifiableList(pending);
+    }
+
+    /**
+     * @return Results by job id, in the order they came back. Includes results of failed jobs.
+     */
+    public Map<UUID, JobResult> getResults() {
+        return results;
+    }
+
+    /**
+     * @return Errors by job id, such as a {@link com.willwarren.exceptions.ResponseException} for TIMED-OUT, in the
+     * order they happened
+     */
+    public Map<UUID, WorkqException> getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return Ids of jobs that were still running or never sent, because the deadline passed or the quorum was met
+     */
+    public List<UUID> getPending() {
+        return pending;
+    }
+
+    /**
+     * @return Whether every job came back with a result or an error
+     */
+    public boolean isComplete() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * @return How many jobs came back with a successful result
+     */
+    public int getSuccessCount() {
+        int count = 0;
+        for (JobResult result : results.values()) {
+            if (result.isSuccess()) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Will Warren
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.willwarren.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A command sent by a WorkqClient, from taking the connection to reading the reply
+ */
+@Name("com.willwarren.workq.Command")
+@Label("Workq Command")
+@Category({"Workq", "Client"})
+@StackTrace(false)
+@Description("A command sent to the workq server and its reply")
+public class CommandEvent extends jdk.jfr.Event {
+
+    @Label("Command")
+    private String command;
+
+    @Label("Job Name")
+    private String jobName;
+
+    @Label("Bytes Written")
+    @DataAmount
+    private long bytesWritten;
+
+    @Label("Bytes Read")
+    @DataAmount
+    @Description("Bytes of the reply read before the command returned, a streamed result payload is not included")
+    private long bytesRead;
+
+    @Label("Status")
+    @Description("OK, the error code the server replied with, or ERROR if the command failed on the client")
+    private String status;
+
+    public void setCommand(String command) {
+        this.command = command;
+    }
+
+    public void setJobName(String jobName) {
+        this.jobName = jobName;
+    }
+
+    public void setBytesWritten(long bytesWritten) {
+        this.bytesWritten = bytesWritten;
+    }
+
+    public void setBytesRead(long bytesRead) {
+        this.bytesRead = bytesRead;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+}
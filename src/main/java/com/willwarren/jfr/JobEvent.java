@@ -0,0 +1,81 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Will Warren
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.willwarren.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A leased job being handled by a WorkqWorker
+ */
+@Name("com.willwarren.workq.Job")
+@Label("Workq Job")
+@Category({"Workq", "Worker"})
+@StackTrace(false)
+@Description("A leased job being handled, from leaving the prefetch buffer until its result is queued for reporting")
+public class JobEvent extends jdk.jfr.Event {
+
+    @Label("Job Id")
+    private String jobId;
+
+    @Label("Job Name")
+    private String jobName;
+
+    @Label("Success")
+    private boolean success;
+
+    @Label("Expired")
+    @Description("The job's TTR ran out while it was buffered, so it was not handled")
+    private boolean expired;
+
+    @Label("Buffered Time")
+    @Timespan(Timespan.NANOSECONDS)
+    @Description("Time the job spent in the prefetch buffer after it was leased")
+    private long bufferedTime;
+
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+
+    public void setJobName(String jobName) {
+        this.jobName = jobName;
+    }
+
+    public void setSuccess(boolean success) {
+        this.success = success;
+    }
+
+    public void setExpired(boolean expired) {
+        this.expired = expired;
+    }
+
+    public void setBufferedTime(long bufferedTime) {
+        this.bufferedTime = bufferedTime;
+    }
+}
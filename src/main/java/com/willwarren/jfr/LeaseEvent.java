@@ -0,0 +1,64 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Will Warren
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.willwarren.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A round of prefetching leases by a WorkqWorker
+ */
+@Name("com.willwarren.workq.Lease")
+@Label("Workq Lease")
+@Category({"Workq", "Worker"})
+@StackTrace(false)
+@Description("A batch of pipelined leases sent to fill a worker's prefetch buffer")
+public class LeaseEvent extends jdk.jfr.Event {
+
+    @Label("Job Names")
+    @Description("Every job name asked for by the leases in the batch")
+    private String names;
+
+    @Label("Requested")
+    private int requested;
+
+    @Label("Leased")
+    private int leased;
+
+    public void setNames(String names) {
+        this.names = names;
+    }
+
+    public void setRequested(int requested) {
+        this.requested = requested;
+    }
+
+    public void setLeased(int leased) {
+        this.leased = leased;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Will Warren
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.willwarren.model;
+
+import com.willwarren.exceptions.ResponseException;
+
+/**
+ * The outcome of a command that returns error replies instead of throwing them
+ *
+ * @param <T> The type of value an OK reply carries
+ */
+public class Reply<T> {
+
+    private final ResponseStatus status;
+    private final String errorCode;
+    private final String errorText;
+    private final T value;
+
+    private Reply(ResponseStatus status, String errorCode, String errorText, T value) {
+        this.status = status;
+        this.errorCode = errorCode;
+        this.errorText = errorText;
+        this.value = value;
+    }
+
+    public static <T> Reply<T> ok(T value) {
+        return new Reply<T>(ResponseStatus.OK, null, null, value);
+    }
+
+    public static <T> Reply<T> error(ResponseException re) {
+        return new Reply<T>(re.getResponseStatus(), re.getResponseErrorCode(), re.getResponseErrorText(), null);
+    }
+
+    public boolean isOk() {
+        return status == ResponseStatus.OK;
+    }
+
+    public ResponseStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * @return The error code as sent by the server, useful when the status is UNKNOWN, or null if OK
+     */
+    public String getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * @return The error text as sent by the server, or null if OK
+     */
+    public String getErrorText() {
+        return errorText;
+    }
+
+    /**
+     * @return The value of an OK reply, or null if there was an error or the command has no value
+     */
+    public T getValue() {
+        return value;
+    }
+}
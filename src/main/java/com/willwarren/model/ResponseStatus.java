@@ -0,0 +1,80 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Will Warren
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.willwarren.model;
+
+/**
+ * The status of a reply from the server: https://github.com/iamduo/workq/blob/master/doc/protocol.md#errors
+ */
+public enum ResponseStatus {
+
+    OK("OK"),
+    CLIENT_ERROR("CLIENT-ERROR"),
+    SERVER_ERROR("SERVER-ERROR"),
+    NOT_FOUND("NOT-FOUND"),
+    TIMED_OUT("TIMED-OUT"),
+
+    /**
+     * An error code this client doesn't know
+     */
+    UNKNOWN(null);
+
+    private final String code;
+
+    ResponseStatus(String code) {
+        this.code = code;
+    }
+
+    /**
+     * @return The code as sent by the server, without the leading "+" or "-", or null for UNKNOWN
+     */
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * @param code A code as sent by the server, without the leading "+" or "-"
+     * @return The matching status, or UNKNOWN
+     */
+    public static ResponseStatus fromCode(String code) {
+        if (code == null) {
+            return UNKNOWN;
+        }
+
+        switch (code) {
+            case "OK":
+                return OK;
+            case "CLIENT-ERROR":
+                return CLIENT_ERROR;
+            case "SERVER-ERROR":
+                return SERVER_ERROR;
+            case "NOT-FOUND":
+                return NOT_FOUND;
+            case "TIMED-OUT":
+                return TIMED_OUT;
+            default:
+                return UNKNOWN;
+        }
+    }
+}
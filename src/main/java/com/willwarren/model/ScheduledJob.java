@@ -27,17 +27,29 @@ package com.willwarren.model;
 import org.joda.time.DateTime;
 
 import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
 
 public class ScheduledJob extends BackgroundJob {
 
     private DateTime time;
-    private final static String RFC3339 = "YYYY-MM-DD'T'HH:mm:ss'Z'";
-    private SimpleDateFormat rfc3339Format = new SimpleDateFormat(RFC3339);
+    private final static String RFC3339 = "yyyy-MM-dd'T'HH:mm:ss'Z'";
 
     public String getTimeString() {
         if (time == null) return null;
 
-        return rfc3339Format.format(time.toDate());
+        return formatTime(time.toDate());
+    }
+
+    /**
+     * @param time A point in time
+     * @return The time in UTC, as the "schedule" command expects it
+     */
+    public static String formatTime(Date time) {
+        // SimpleDateFormat isn't thread safe, so one per call
+        SimpleDateFormat rfc3339Format = new SimpleDateFormat(RFC3339);
+        rfc3339Format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return rfc3339Format.format(time);
     }
 
     public DateTime getTime() {
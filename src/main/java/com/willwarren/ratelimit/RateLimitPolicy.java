@@ -0,0 +1,49 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Will Warren
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.willwarren.ratelimit;
+
+/**
+ * What a {@link RateLimiter} does with a job submitted when its name is over the limit
+ */
+public enum RateLimitPolicy {
+
+    /**
+     * Block the caller until the job's slot comes up, or throw
+     * {@link com.willwarren.exceptions.DeadlineExceededException} if that is past the call's deadline.
+     */
+    WAIT,
+
+    /**
+     * Send background jobs straight away with "schedule", for the server to hold until their slot. The server
+     * schedules to the second, so the slot is rounded up to a whole second. Foreground jobs can't be scheduled and
+     * wait instead.
+     */
+    DELAY,
+
+    /**
+     * Throw {@link com.willwarren.exceptions.RateLimitedException} without sending the job.
+     */
+    REJECT
+}
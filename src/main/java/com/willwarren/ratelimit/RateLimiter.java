@@ -0,0 +1,146 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Will Warren
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.willwarren.ratelimit;
+
+import com.willwarren.exceptions.DeadlineExceededException;
+import com.willwarren.exceptions.RateLimitedException;
+import com.willwarren.exceptions.WorkqException;
+import com.willwarren.model.Deadline;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per job name token buckets, checked by a {@link com.willwarren.WorkqClient} before it sends a job.
+ * <p>
+ * Each bucket is kept as the time its next job is due, in the manner of the generic cell rate algorithm, so taking a
+ * token is a single compare-and-set with no lock and no refill thread. Names without a limit cost one map lookup.
+ */
+public class RateLimiter {
+
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+    /**
+     * Limit a job name, replacing any limit it had. The bucket starts full.
+     *
+     * @param name      The job name
+     * @param perSecond Jobs per second allowed on average
+     * @param burst     Jobs allowed at once after a quiet spell, at least 1
+     * @param policy    What to do with a job over the limit
+     */
+    public void setLimit(String name, double perSecond, int burst, RateLimitPolicy policy) {
+        if (perSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("perSecond must be positive and burst at least 1");
+        }
+        buckets.put(name, new Bucket((long) (TimeUnit.SECONDS.toNanos(1) / perSecond), burst, policy));
+    }
+
+    public void removeLimit(String name) {
+        buckets.remove(name);
+    }
+
+    /**
+     * Take a token for a job, applying the name's {@link RateLimitPolicy} if there is none to take
+     *
+     * @param name     The job name
+     * @param canDelay Whether the job can be scheduled, so {@link RateLimitPolicy#DELAY} applies rather than WAIT
+     * @param deadline The call's deadline, or null
+     * @return Nanoseconds the job has to be delayed by, only ever more than 0 for the DELAY policy
+     * @throws RateLimitedException      If the name is over its limit and the policy is REJECT
+     * @throws DeadlineExceededException If the job would have to wait past the deadline
+     * @throws WorkqException            If interrupted while waiting
+     */
+    public long acquire(String name, boolean canDelay, Deadline deadline) throws WorkqException {
+        Bucket bucket = buckets.get(name);
+        if (bucket == null) {
+            return 0;
+        }
+
+        if (bucket.policy == RateLimitPolicy.REJECT) {
+            if (bucket.reserve(0) < 0) {
+                throw new RateLimitedException("Rate limit reached for " + name);
+            }
+            return 0;
+        }
+
+        if (bucket.policy == RateLimitPolicy.DELAY && canDelay) {
+            return bucket.reserve(Long.MAX_VALUE);
+        }
+
+        long maxWait = deadline == null ? Long.MAX_VALUE : deadline.remaining(TimeUnit.NANOSECONDS);
+        long wait = bucket.reserve(maxWait);
+        if (wait < 0) {
+            throw new DeadlineExceededException("Rate limit for " + name + " would wait past the deadline");
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new WorkqException("Interrupted waiting for the rate limit of " + name, ie);
+            }
+        }
+        return 0;
+    }
+
+    private static class Bucket {
+
+        private final long interval;
+        private final long tolerance;
+        private final RateLimitPolicy policy;
+
+        // When the next job would be due if the bucket were empty. Up to tolerance ahead of now means tokens are left.
+        private final AtomicLong due;
+
+        private Bucket(long interval, int burst, RateLimitPolicy policy) {
+            this.interval = Math.max(1, interval);
+            this.tolerance = this.interval * (burst - 1);
+            this.policy = policy;
+            this.due = new AtomicLong(System.nanoTime());
+        }
+
+        /**
+         * Claim the next slot, unless it is more than maxDelay nanoseconds away
+         *
+         * @return Nanoseconds until the claimed slot, 0 if a token was free, or -1 if nothing was claimed
+         */
+        private long reserve(long maxDelay) {
+            while (true) {
+                long now = System.nanoTime();
+                long current = due.get();
+                long start = current - now > 0 ? current : now;
+                long delay = Math.max(0, start - tolerance - now);
+                if (delay > maxDelay) {
+                    return -1;
+                }
+                if (due.compareAndSet(current, start + interval)) {
+                    return delay;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Will Warren
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.willwarren.worker;
+
+import com.willwarren.WorkqClient;
+import com.willwarren.exceptions.NetworkException;
+import com.willwarren.exceptions.ResponseException;
+import com.willwarren.exceptions.WorkqException;
+import com.willwarren.jfr.ReportEvent;
+import com.willwarren.model.JobResult;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reports job results in pipelined batches on a connection of its own.
+ * <p>
+ * Results are queued by {@link #submit(JobResult)} and sent by a background thread as soon as maxBatch of them are
+ * waiting or maxDelay has passed since the first one was picked up. Each result stays pending until the server has
+ * acknowledged it, so after a lost connection only the unacknowledged results are reported again.
+ */
+public class CompletionReporter {
+
+    private final Log LOG = LogFactory.getLog(CompletionReporter.class);
+
+    private final static long RECONNECT_DELAY = 1000;
+    private final static String NOT_FOUND = "NOT-FOUND";
+
+    private final String host;
+    private final int port;
+    private final int maxBatch;
+    private final long maxDelay;
+
+    private final BlockingQueue<JobResult> queue;
+    private final Thread thread;
+    private volatile boolean running;
+    private WorkqClient client;
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param host     The workq host
+     * @param port     The workq port
+     * @param maxBatch Most results sent in one write
+     * @param maxDelay Most milliseconds a result waits for a batch to fill up
+     * @param capacity Most results queued before {@link #submit(JobResult)} blocks
+     * @throws IOException If the reporter could not connect
+     */
+    public CompletionReporter(String host, int port, int maxBatch, long maxDelay, int capacity) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxDelay = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+        this.queue = new LinkedBlockingQueue<JobResult>(capacity);
+        this.client = new WorkqClient(host, port);
+
+        this.running = true;
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                reportLoop();
+            }
+        }, "workq-reporter");
+        this.thread.start();
+    }
+
+    /**
+     * Queue a result to be reported, blocking while the queue is full. Not interruptible, so a handler that is
+     * interrupted while stopping still gets its last result queued.
+     *
+     * @param result {@link JobResult} The result of a leased job
+     */
+    public void submit(JobResult result) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(result);
+                break;
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Report everything still queued, then close the connection. Results that can't be reported because the
+     * connection is down are dropped, and the server re-queues their jobs once their TTR is up.
+     */
+    public void close() throws InterruptedException {
+        running = false;
+        thread.join();
+
+        try {
+            client.close();
+        } catch (IOException ioe) {
+            LOG.warn("Error closing connection", ioe);
+        }
+    }
+
+    /**
+     * @return Number of results the server rejected, not counting re-sent results that were already reported
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    private void reportLoop() {
+        List<JobResult> batch = new ArrayList<JobResult>(maxBatch);
+        List<ResponseException> replies = new ArrayList<ResponseException>(maxBatch);
+        // The first resent results of the batch were sent before, on a connection that was lost
+        int resent = 0;
+
+        while (running || !queue.isEmpty() || !batch.isEmpty()) {
+            try {
+                if (batch.isEmpty()) {
+                    JobResult first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                }
+                fillBatch(batch);
+            } catch (InterruptedException ie) {
+                // Only close() stops the loop, so that pending results still get sent
+                continue;
+            }
+
+            replies.clear();
+            ReportEvent event = new ReportEvent();
+            event.begin();
+            try {
+                client.report(batch, replies);
+            } catch (NetworkException ne) {
+                LOG.error("Lost report connection with " + (batch.size() - replies.size())
+                        + " results unacknowledged, reconnecting", ne);
+            } catch (WorkqException we) {
+                LOG.error("Error reporting results", we);
+            }
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.setResults(batch.size());
+                event.setAcknowledged(replies.size());
+                event.commit();
+            }
+
+            for (int i = 0; i < replies.size(); i++) {
+                ResponseException re = replies.get(i);
+                // A result re-sent after a lost reply is rejected because the job was already reported. On a first
+                // attempt, NOT-FOUND means the lease was lost, for example to its TTR running out.
+                if (re != null && !(i < resent && NOT_FOUND.equals(re.getResponseErrorCode()))) {
+                    rejected.incrementAndGet();
+                    LOG.error("Error reporting job " + batch.get(i).getId(), re);
+                }
+            }
+            batch.subList(0, replies.size()).clear();
+            resent = batch.size();
+
+            if (!batch.isEmpty() && !reconnect()) {
+                LOG.error("Dropping " + (batch.size() + queue.size()) + " unreported results");
+                batch.clear();
+                queue.clear();
+                resent = 0;
+            }
+        }
+    }
+
+    /**
+     * Top a batch up with queued results until it is full or maxDelay has passed
+     */
+    private void fillBatch(List<JobResult> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + maxDelay;
+
+        while (batch.size() < maxBatch) {
+            queue.drainTo(batch, maxBatch - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= maxBatch || remaining <= 0 || !running) {
+                return;
+            }
+
+            JobResult next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    /**
+     * @return Whether a new connection was made, false if the reporter was closed before it could reconnect
+     */
+    private boolean reconnect() {
+        try {
+            client.close();
+        } catch (IOException ioe) {
+            LOG.warn("Error closing connection", ioe);
+        }
+
+        while (running) {
+            try {
+                client = new WorkqClient(host, port);
+                return true;
+            } catch (IOException ioe) {
+                try {
+                    Thread.sleep(RECONNECT_DELAY);
+                } catch (InterruptedException ie) {
+                    return false;
+                }
+            }
+        }
+
+        return false;
+    }
+}
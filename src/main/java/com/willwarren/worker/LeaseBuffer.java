@@ -0,0 +1,219 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Will Warren
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.willwarren.worker;
+
+import com.willwarren.model.LeasedJob;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded buffer of prefetched leases. The target depth follows the measured lease round trip and handler time, so
+ * there is always enough work buffered to cover a lease round trip, but never more than can be started before the
+ * jobs' TTR runs out.
+ */
+class LeaseBuffer {
+
+    // Weight given to each new sample in the moving averages
+    private final static double ALPHA = 0.2;
+
+    static class Entry {
+        final LeasedJob job;
+        final long leasedAt;
+        final long deadline;
+
+        Entry(LeasedJob job, long leasedAt, long deadline) {
+            this.job = job;
+            this.leasedAt = leasedAt;
+            this.deadline = deadline;
+        }
+    }
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private final int concurrency;
+    private final int maxDepth;
+    private final long ttrNanos;
+    private final long minRemainingNanos;
+
+    private double leaseNanos;
+    private double handlerNanos;
+    private boolean closed;
+
+    /**
+     * @param concurrency  Number of threads taking from the buffer
+     * @param maxDepth     Upper bound on the number of buffered jobs
+     * @param ttr          The jobs' TTR in milliseconds, or 0 if unknown
+     * @param minRemaining Milliseconds of TTR a job needs left to be worth starting
+     */
+    LeaseBuffer(int concurrency, int maxDepth, int ttr, int minRemaining) {
+        this.concurrency = Math.max(1, concurrency);
+        this.maxDepth = Math.max(1, maxDepth);
+        this.ttrNanos = TimeUnit.MILLISECONDS.toNanos(ttr);
+        this.minRemainingNanos = TimeUnit.MILLISECONDS.toNanos(minRemaining);
+    }
+
+    /**
+     * Block until the buffer is below its target depth
+     *
+     * @return How many jobs it would take to fill the buffer
+     */
+    int awaitDeficit() throws InterruptedException {
+        lock.lock();
+        try {
+            int deficit;
+            while ((deficit = targetDepth() - entries.size()) <= 0) {
+                notFull.await();
+            }
+            return deficit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param job      The leased job
+     * @param leasedAt {@link System#nanoTime()} at which the lease was sent
+     * @param deadline {@link System#nanoTime()} at which the job's TTR runs out
+     */
+    void put(LeasedJob job, long leasedAt, long deadline) {
+        lock.lock();
+        try {
+            if (closed) {
+                // Abandoned, the server re-queues it once its TTR is up
+                return;
+            }
+            entries.addLast(new Entry(job, leasedAt, deadline));
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The oldest buffered job, or null once the buffer is closed
+     */
+    Entry take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (entries.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            if (closed) {
+                return null;
+            }
+            Entry entry = entries.pollFirst();
+            notFull.signal();
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Abandon the buffered jobs and wake up every thread waiting to take one
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            entries.clear();
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param entry A buffered job
+     * @param now   {@link System#nanoTime()} at which it would be started
+     * @return Whether too little of its TTR is left to start it
+     */
+    boolean isExpired(Entry entry, long now) {
+        return ttrNanos > 0 && entry.deadline - now < minRemainingNanos;
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return entries.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param nanos Round trip of a lease that returned without waiting for jobs
+     */
+    void recordLeaseLatency(long nanos) {
+        lock.lock();
+        try {
+            leaseNanos = leaseNanos == 0 ? nanos : leaseNanos + ALPHA * (nanos - leaseNanos);
+            notFull.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param nanos Time a handler spent on one job
+     */
+    void recordHandlerTime(long nanos) {
+        lock.lock();
+        try {
+            handlerNanos = handlerNanos == 0 ? nanos : handlerNanos + ALPHA * (nanos - handlerNanos);
+            notFull.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of jobs to keep buffered. Must be called holding the lock.
+     */
+    int targetDepth() {
+        if (leaseNanos == 0 || handlerNanos == 0) {
+            return Math.min(concurrency, maxDepth);
+        }
+
+        // Handlers take a new job every perJob nanos between them; cover a full lease round trip at that rate
+        double perJob = Math.max(1, handlerNanos / concurrency);
+        long depth = (long) Math.ceil(leaseNanos / perJob) + 1;
+
+        // The last buffered job waits depth * perJob before it starts, which has to fit within its TTR
+        if (ttrNanos > 0) {
+            double usable = ttrNanos - minRemainingNanos - handlerNanos;
+            depth = Math.min(depth, Math.max(1, (long) (usable / perJob)));
+        }
+
+        return (int) Math.max(1, Math.min(depth, maxDepth));
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Will Warren
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.willwarren.worker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides which job names each lease asks for, so a worker serving many names shares its capacity between them by
+ * weight and never holds more than a name's cap of its jobs at once.
+ * <p>
+ * This is deficit round robin with a cost of one per job. Each round, every name is credited weight * quantum
+ * leases. A name is only included in as many leases as its remaining credit and free capacity allow, which keeps both
+ * hard limits even though one multi-name lease can return a job of any name in it. A name that had credit left but
+ * didn't return a job was idle: its credit is dropped at the start of the next round rather than saved up.
+ * <p>
+ * A name that was asked for in a batch and didn't return a job is taken to have none waiting until it returns one
+ * again. Such names are still included in leases, but a batch is only as long as the credit of the names known to have
+ * jobs, or a single lease if there are none. A new round starts once only names without jobs have credit left, so they
+ * never hold up the busy names with pipelined leases that each wait out their timeout on the server.
+ */
+class NameScheduler {
+
+    private static class Name {
+        final String name;
+        final int weight;
+        final int cap;
+        long deficit;
+        int inFlight;
+        // Whether the name returned a job the last time it was asked for, assumed at the start
+        boolean active = true;
+        int leasedInBatch;
+
+        Name(String name, int weight, int cap) {
+            this.name = name;
+            this.weight = weight;
+            this.cap = cap;
+        }
+
+        /**
+         * @return How many more leases this name can be included in this round
+         */
+        long budget() {
+            return Math.max(0, Math.min(deficit, cap - inFlight));
+        }
+    }
+
+    private final List<Name> names = new ArrayList<Name>();
+    private final Map<String, Name> byName = new HashMap<String, Name>();
+    private final int quantum;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition capacity = lock.newCondition();
+    private boolean idle = true;
+    private int rotation;
+
+    /**
+     * @param names   The job names to lease from
+     * @param weights Weight of each name, 1 for names not in the map
+     * @param caps    Most jobs of each name leased and not yet finished, unlimited for names not in the map
+     * @param quantum Leases credited per unit of weight each round
+     */
+    NameScheduler(List<String> names, Map<String, Integer> weights, Map<String, Integer> caps, int quantum) {
+        for (String name : names) {
+            Integer weight = weights.get(name);
+            Integer cap = caps.get(name);
+            Name entry = new Name(name, weight != null ? Math.max(1, weight) : 1,
+                    cap != null ? Math.max(1, cap) : Integer.MAX_VALUE);
+            this.names.add(entry);
+            this.byName.put(name, entry);
+        }
+        this.quantum = Math.max(1, quantum);
+    }
+
+    /**
+     * Plan the next batch of pipelined leases, blocking while every name is at its cap
+     *
+     * @param max Most leases to plan
+     * @return The names for each lease, every list non-empty
+     */
+    List<List<String>> plan(int max) throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                boolean underCap = false;
+                boolean credited = false;
+                for (Name name : names) {
+                    if (name.inFlight < name.cap) {
+                        underCap = true;
+                        credited |= name.active && name.deficit > 0;
+                    }
+                }
+
+                if (!underCap) {
+                    capacity.await();
+                    continue;
+                }
+                if (!credited || idle) {
+                    newRound();
+                    idle = false;
+                }
+
+                List<Name> order = new ArrayList<Name>(names.size());
+                long batch = 0;
+                for (int i = 0; i < names.size(); i++) {
+                    Name name = names.get((rotation + i) % names.size());
+                    if (name.budget() > 0) {
+                        order.add(name);
+                        if (name.active) {
+                            batch = Math.max(batch, name.budget());
+                        }
+                    }
+                }
+                rotation++;
+
+                // A name is in the first budget() leases, so it can't be handed more jobs than that. Leases past the
+                // budget of every name known to have jobs would only wait on the server, so there is at most one.
+                int count = (int) Math.min(max, Math.max(1, batch));
+                List<List<String>> leases = new ArrayList<List<String>>(count);
+                for (int i = 0; i < count; i++) {
+                    // Rotate each lease's names as well, in case the server favours the first one
+                    List<String> lease = new ArrayList<String>(order.size());
+                    for (int j = 0; j < order.size(); j++) {
+                        Name name = order.get((i + j) % order.size());
+                        if (name.budget() > i) {
+                            lease.add(name.name);
+                        }
+                    }
+                    leases.add(lease);
+                }
+                return leases;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Charge a leased job to its name
+     */
+    void leased(String jobName) {
+        lock.lock();
+        try {
+            Name name = byName.get(jobName);
+            if (name != null) {
+                name.deficit--;
+                name.inFlight++;
+                name.leasedInBatch++;
+                name.active = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A job of this name was handled, expired or otherwise let go, freeing capacity for its name
+     */
+    void finished(String jobName) {
+        lock.lock();
+        try {
+            Name name = byName.get(jobName);
+            if (name != null) {
+                name.inFlight--;
+                capacity.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A batch of leases came back and its jobs were charged with {@link #leased(String)}. Names in the batch that
+     * didn't return a job are taken to have none waiting.
+     *
+     * @param leases The batch, as planned
+     */
+    void returned(List<List<String>> leases) {
+        lock.lock();
+        try {
+            for (List<String> lease : leases) {
+                for (String jobName : lease) {
+                    Name name = byName.get(jobName);
+                    if (name != null) {
+                        name.active = name.leasedInBatch > 0;
+                    }
+                }
+            }
+            for (Name name : names) {
+                name.leasedInBatch = 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A batch of leases came back short, so some of the names in it had no jobs waiting
+     */
+    void idle() {
+        lock.lock();
+        try {
+            idle = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Must be called holding the lock
+     */
+    private void newRound() {
+        // Leases never ask for more than a name's credit, so there is no debt to carry over, and credit left over
+        // means the name was idle
+        for (Name name : names) {
+            name.deficit = (long) name.weight * quantum;
+        }
+    }
+}
@@ -0,0 +1,485 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Will Warren
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.willwarren.worker;
+
+import com.willwarren.WorkqClient;
+import com.willwarren.exceptions.NetworkException;
+import com.willwarren.exceptions.ResponseMalformedException;
+import com.willwarren.exceptions.WorkqException;
+import com.willwarren.jfr.JobEvent;
+import com.willwarren.jfr.LeaseEvent;
+import com.willwarren.model.JobResult;
+import com.willwarren.model.LeasedJob;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leases jobs and hands them to a {@link JobHandler} on a pool of handler threads.
+ * <p>
+ * Leases are prefetched into a local buffer so handlers don't wait a full round trip between jobs. The buffer is
+ * topped up with pipelined leases and sized from the measured lease latency and handler time. If a TTR is configured,
+ * jobs that sat in the buffer until less than minRemainingTtr of it is left are handled according to the
+ * {@link ExpiryPolicy} instead of being processed late.
+ * <p>
+ * A worker can serve many job names. Leases are shared between them by deficit round robin, in proportion to each
+ * name's weight, and a name's jobs stop being leased while its cap of them are buffered or being handled. Every lease
+ * asks for all the names that still have credit, so serving more names doesn't take more round trips.
+ * <p>
+ * Results are reported by a {@link CompletionReporter}, which pipelines them in batches of up to maxReportBatch,
+ * holding each result back for at most maxReportDelay milliseconds.
+ */
+public class WorkqWorker {
+
+    private final Log LOG = LogFactory.getLog(WorkqWorker.class);
+
+    private final static long RECONNECT_DELAY = 1000;
+
+    private String host;
+    private int port;
+    private List<String> names;
+    private JobHandler handler;
+
+    private int concurrency = 1;
+    private int maxPrefetch = 16;
+    private int ttr = 0;
+    private int minRemainingTtr = 0;
+    private int leaseWaitTimeout = 1000;
+    private int prefetchWaitTimeout = 10;
+    private ExpiryPolicy expiryPolicy = ExpiryPolicy.ABANDON;
+    private int maxReportBatch = 64;
+    private long maxReportDelay = 5;
+    private Map<String, Integer> weights = new HashMap<String, Integer>();
+    private Map<String, Integer> caps = new HashMap<String, Integer>();
+
+    private volatile boolean running;
+    private LeaseBuffer buffer;
+    private NameScheduler scheduler;
+    private volatile WorkqClient leaseClient;
+    private CompletionReporter reporter;
+    private List<Thread> threads;
+
+    public WorkqWorker(String host, int port, List<String> names, JobHandler handler) {
+        this.host = host;
+        this.port = port;
+        this.names = names;
+        this.handler = handler;
+    }
+
+    /**
+     * Connect to the server and start leasing jobs
+     *
+     * @throws IOException If the worker could not connect
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+
+        leaseClient = new WorkqClient(host, port);
+        reporter = new CompletionReporter(host, port, maxReportBatch, maxReportDelay, Math.max(maxReportBatch, 1024));
+        buffer = new LeaseBuffer(concurrency, maxPrefetch, ttr, minRemainingTtr);
+        scheduler = new NameScheduler(names, weights, caps, maxPrefetch);
+        running = true;
+
+        threads = new ArrayList<Thread>();
+        threads.add(new Thread(new Runnable() {
+            public void run() {
+                leaseLoop();
+            }
+        }, "workq-lease"));
+        for (int i = 0; i < concurrency; i++) {
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    handlerLoop();
+                }
+            }, "workq-handler-" + i));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop leasing, wait for the handlers to finish their current job and report every result. Jobs still in the
+     * prefetch buffer are abandoned and will be re-queued by the server once their TTR is up.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+        // Only the lease thread is interrupted. Handlers finish the job they are on and then find the buffer closed.
+        threads.get(0).interrupt();
+        // Closing the lease connection unblocks a lease that is waiting on the server
+        closeQuietly(leaseClient);
+        buffer.close();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        reporter.close();
+    }
+
+    private void leaseLoop() {
+        long ttrNanos = TimeUnit.MILLISECONDS.toNanos(ttr);
+
+        while (running) {
+            try {
+                int wanted = buffer.awaitDeficit();
+
+                // Block on a single lease when idle, otherwise top the buffer up without waiting on an empty queue
+                boolean idle = buffer.isEmpty();
+                if (idle) {
+                    // Nothing is waiting to be handled, so let names that spent their credit back in rather than
+                    // block on names that may have no jobs
+                    scheduler.idle();
+                }
+                List<List<String>> leases = scheduler.plan(idle ? 1 : wanted);
+                int count = leases.size();
+                LeaseEvent event = new LeaseEvent();
+                event.begin();
+                long sentAt = System.nanoTime();
+                List<LeasedJob> jobs = leaseClient.leaseBatch(leases, idle ? leaseWaitTimeout : prefetchWaitTimeout);
+
+                event.end();
+                if (event.shouldCommit()) {
+                    event.setNames(String.join(",", leasedNames(leases)));
+                    event.setRequested(count);
+                    event.setLeased(jobs.size());
+                    event.commit();
+                }
+
+                // The server starts the TTR clock when it hands the job out, which is after sentAt
+                for (LeasedJob job : jobs) {
+                    scheduler.leased(job.getName());
+                    buffer.put(job, sentAt, sentAt + ttrNanos);
+                }
+                scheduler.returned(leases);
+
+                if (jobs.size() < count) {
+                    scheduler.idle();
+                } else if (!idle) {
+                    buffer.recordLeaseLatency(System.nanoTime() - sentAt);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (NetworkException ne) {
+                if (!running) {
+                    // stop() closed the connection
+                    return;
+                }
+                LOG.error("Lost lease connection, reconnecting", ne);
+                leaseClient = reconnect(leaseClient);
+            } catch (ResponseMalformedException rme) {
+                LOG.error("Lease connection out of step with the server, reconnecting", rme);
+                leaseClient = reconnect(leaseClient);
+            } catch (WorkqException we) {
+                // Likely to happen again straight away, so don't spin on it
+                LOG.error("Error leasing jobs", we);
+                try {
+                    Thread.sleep(RECONNECT_DELAY);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void handlerLoop() {
+        while (running) {
+            LeaseBuffer.Entry entry;
+            try {
+                entry = buffer.take();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (entry == null) {
+                // Stopped
+                return;
+            }
+
+            LeasedJob job = entry.job;
+            JobEvent event = new JobEvent();
+            event.begin();
+            long start = System.nanoTime();
+
+            if (buffer.isExpired(entry, start)) {
+                expire(job);
+                scheduler.finished(job.getName());
+                commitJobEvent(event, entry, start, false, true);
+                continue;
+            }
+
+            byte[] result;
+            boolean success;
+            try {
+                result = handler.handle(job);
+                success = true;
+            } catch (Exception e) {
+                LOG.error("Error handling job " + job.getId(), e);
+                result = String.valueOf(e.getMessage()).getBytes();
+                success = false;
+            }
+            buffer.recordHandlerTime(System.nanoTime() - start);
+
+            report(job, success, result);
+            scheduler.finished(job.getName());
+            commitJobEvent(event, entry, start, success, false);
+        }
+    }
+
+    /**
+     * @return Every name asked for in a batch of leases, in the order they first appear
+     */
+    private static Set<String> leasedNames(List<List<String>> leases) {
+        Set<String> names = new LinkedHashSet<String>();
+        for (List<String> lease : leases) {
+            names.addAll(lease);
+        }
+        return names;
+    }
+
+    private void commitJobEvent(JobEvent event, LeaseBuffer.Entry entry, long start, boolean success,
+                                boolean expired) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.setJobId(entry.job.getId().toString());
+            event.setJobName(entry.job.getName());
+            event.setSuccess(success);
+            event.setExpired(expired);
+            event.setBufferedTime(start - entry.leasedAt);
+            event.commit();
+        }
+    }
+
+    private void expire(LeasedJob job) {
+        LOG.warn("TTR of job " + job.getId() + " ran out before it could be processed");
+
+        JobResult result = expiryResult(job, expiryPolicy);
+        if (result != null) {
+            reporter.submit(result);
+        }
+    }
+
+    /**
+     * @return The result to report for a job whose TTR ran out in the buffer, or null if it is to be abandoned
+     */
+    static JobResult expiryResult(LeasedJob job, ExpiryPolicy policy) {
+        if (policy != ExpiryPolicy.FAIL) {
+            return null;
+        }
+
+        JobResult result = new JobResult();
+        result.setId(job.getId());
+        result.setSuccess(false);
+        result.setResult("TTR ran out before the job could be processed".getBytes());
+        return result;
+    }
+
+    private void report(LeasedJob job, boolean success, byte[] result) {
+        JobResult jobResult = new JobResult();
+        jobResult.setId(job.getId());
+        jobResult.setSuccess(success);
+        jobResult.setResult(result);
+
+        reporter.submit(jobResult);
+    }
+
+    private WorkqClient reconnect(WorkqClient client) {
+        closeQuietly(client);
+
+        while (running) {
+            try {
+                return new WorkqClient(host, port);
+            } catch (IOException ioe) {
+                try {
+                    Thread.sleep(RECONNECT_DELAY);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        return client;
+    }
+
+    private void closeQuietly(WorkqClient client) {
+        try {
+            client.close();
+        } catch (IOException ioe) {
+            LOG.warn("Error closing connection", ioe);
+        }
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public List<String> getNames() {
+        return names;
+    }
+
+    public JobHandler getHandler() {
+        return handler;
+    }
+
+    public Map<String, Integer> getWeights() {
+        return weights;
+    }
+
+    /**
+     * @param weights Share of leases each job name gets relative to the others, 1 for names not in the map. Takes
+     *                effect on {@link #start()}.
+     */
+    public void setWeights(Map<String, Integer> weights) {
+        this.weights = weights;
+    }
+
+    public Map<String, Integer> getCaps() {
+        return caps;
+    }
+
+    /**
+     * @param caps Most jobs of each name buffered or being handled at once, unlimited for names not in the map. Takes
+     *             effect on {@link #start()}.
+     */
+    public void setCaps(Map<String, Integer> caps) {
+        this.caps = caps;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @param concurrency Number of handler threads. Takes effect on {@link #start()}.
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public int getMaxPrefetch() {
+        return maxPrefetch;
+    }
+
+    /**
+     * @param maxPrefetch Upper bound on the number of leased jobs waiting for a handler
+     */
+    public void setMaxPrefetch(int maxPrefetch) {
+        this.maxPrefetch = maxPrefetch;
+    }
+
+    public int getTtr() {
+        return ttr;
+    }
+
+    /**
+     * @param ttr TTR of the leased jobs in milliseconds, as set by their producers. 0 disables expiry tracking.
+     */
+    public void setTtr(int ttr) {
+        this.ttr = ttr;
+    }
+
+    public int getMinRemainingTtr() {
+        return minRemainingTtr;
+    }
+
+    /**
+     * @param minRemainingTtr Milliseconds of TTR a job needs left to be handed to the handler
+     */
+    public void setMinRemainingTtr(int minRemainingTtr) {
+        this.minRemainingTtr = minRemainingTtr;
+    }
+
+    public int getLeaseWaitTimeout() {
+        return leaseWaitTimeout;
+    }
+
+    /**
+     * @param leaseWaitTimeout Milliseconds a lease waits for a job when the buffer is empty
+     */
+    public void setLeaseWaitTimeout(int leaseWaitTimeout) {
+        this.leaseWaitTimeout = leaseWaitTimeout;
+    }
+
+    public int getPrefetchWaitTimeout() {
+        return prefetchWaitTimeout;
+    }
+
+    /**
+     * @param prefetchWaitTimeout Milliseconds a lease waits for a job when topping up a non-empty buffer
+     */
+    public void setPrefetchWaitTimeout(int prefetchWaitTimeout) {
+        this.prefetchWaitTimeout = prefetchWaitTimeout;
+    }
+
+    public int getMaxReportBatch() {
+        return maxReportBatch;
+    }
+
+    /**
+     * @param maxReportBatch Most results reported in one pipelined write. Takes effect on {@link #start()}.
+     */
+    public void setMaxReportBatch(int maxReportBatch) {
+        this.maxReportBatch = maxReportBatch;
+    }
+
+    public long getMaxReportDelay() {
+        return maxReportDelay;
+    }
+
+    /**
+     * @param maxReportDelay Most milliseconds a result is held back waiting for a batch to fill up. Takes effect on
+     *                       {@link #start()}.
+     */
+    public void setMaxReportDelay(long maxReportDelay) {
+        this.maxReportDelay = maxReportDelay;
+    }
+
+    public ExpiryPolicy getExpiryPolicy() {
+        return expiryPolicy;
+    }
+
+    public void setExpiryPolicy(ExpiryPolicy expiryPolicy) {
+        this.expiryPolicy = expiryPolicy;
+    }
+}
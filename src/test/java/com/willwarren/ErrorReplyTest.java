@@ -0,0 +1,57 @@
+package com.willwarren;
+
+import com.willwarren.exceptions.ResponseException;
+import com.willwarren.exceptions.ResponseMalformedException;
+import com.willwarren.model.ResponseStatus;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ErrorReplyTest {
+
+    @Test
+    public void testCodeWithText() throws Exception {
+        ResponseException re = WorkqClient.parseError("-CLIENT-ERROR Invalid job name", true);
+
+        Assert.assertEquals("CLIENT-ERROR", re.getResponseErrorCode());
+        Assert.assertEquals("Invalid job name", re.getResponseErrorText());
+        Assert.assertSame(ResponseStatus.CLIENT_ERROR, re.getResponseStatus());
+    }
+
+    @Test
+    public void testCodeWithoutText() throws Exception {
+        ResponseException re = WorkqClient.parseError("-TIMED-OUT", false);
+
+        // Known codes are interned
+        Assert.assertSame(ResponseStatus.TIMED_OUT.getCode(), re.getResponseErrorCode());
+        Assert.assertEquals("", re.getResponseErrorText());
+        Assert.assertEquals(0, re.getStackTrace().length);
+    }
+
+    @Test
+    public void testUnknownCode() throws Exception {
+        ResponseException re = WorkqClient.parseError("-NEW-ERROR Something", false);
+
+        Assert.assertEquals("NEW-ERROR", re.getResponseErrorCode());
+        Assert.assertSame(ResponseStatus.UNKNOWN, re.getResponseStatus());
+    }
+
+    @Test
+    public void testLoneDash() throws Exception {
+        try {
+            WorkqClient.parseError("-", false);
+            Assert.fail();
+        } catch (ResponseMalformedException rme) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testEmptyText() throws Exception {
+        try {
+            WorkqClient.parseError("-CLIENT-ERROR ", false);
+            Assert.fail();
+        } catch (ResponseMalformedException rme) {
+            // Expected
+        }
+    }
+}
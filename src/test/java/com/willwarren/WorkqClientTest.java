@@ -1,12 +1,25 @@
 package com.willwarren;
 
+import com.willwarren.exceptions.DeadlineExceededException;
 import com.willwarren.exceptions.ResponseException;
 import com.willwarren.model.BackgroundJob;
+import com.willwarren.model.Deadline;
 import com.willwarren.model.ForegroundJob;
+import com.willwarren.model.JobResult;
+import com.willwarren.model.LeasedJob;
+import com.willwarren.model.Reply;
+import com.willwarren.model.ResponseStatus;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by will on 2016-09-16.
@@ -30,7 +43,7 @@ public class WorkqClientTest {
 //        job.setPriority(100);
 //        job.setTtr(1000);
 //
-//        Assert.assertTrue(this.client.run(job) > 0);
+//        Assert.assertTrue(this.client.run(job).isSuccess());
 //    }
 
     @Test
@@ -50,6 +63,22 @@ public class WorkqClientTest {
         }
     }
 
+    @Test
+    public void testTryRunTimeout() throws Exception {
+        ForegroundJob job = new ForegroundJob();
+        job.setName("testTryRunTimeout");
+        job.setId(UUID.randomUUID());
+        job.setTimeout(100);
+        job.setPayload("TEST".getBytes());
+        job.setTtr(1000);
+
+        Reply<JobResult> reply = this.client.tryRun(job);
+        Assert.assertFalse(reply.isOk());
+        Assert.assertSame(ResponseStatus.TIMED_OUT, reply.getStatus());
+        Assert.assertEquals("TIMED-OUT", reply.getErrorCode());
+        Assert.assertNull(reply.getValue());
+    }
+
     @Test
     public void testBackgroundJob() throws Exception {
         BackgroundJob job = new BackgroundJob();
@@ -64,4 +93,196 @@ public class WorkqClientTest {
 
         this.client.add(job);
     }
+
+    @Test
+    public void testLeaseAndComplete() throws Exception {
+        BackgroundJob job = new BackgroundJob();
+        job.setName("testLeaseAndComplete");
+        job.setId(UUID.randomUUID());
+        job.setTtl(3600000);
+        job.setPayload("Lease me!".getBytes());
+        job.setTtr(1000);
+
+        this.client.add(job);
+
+        LeasedJob leased = this.client.lease(Collections.singletonList("testLeaseAndComplete"), 1000);
+        Assert.assertNotNull(leased);
+        Assert.assertEquals("testLeaseAndComplete", leased.getName());
+
+        this.client.complete(leased.getId(), "Done".getBytes());
+    }
+
+    @Test
+    public void testReportBatch() throws Exception {
+        List<String> names = Collections.singletonList("testReportBatch");
+        for (int i = 0; i < 3; i++) {
+            BackgroundJob job = new BackgroundJob();
+            job.setName("testReportBatch");
+            job.setId(UUID.randomUUID());
+            job.setTtl(3600000);
+            job.setPayload(("Job " + i).getBytes());
+            job.setTtr(1000);
+
+            this.client.add(job);
+        }
+
+        List<JobResult> results = new ArrayList<JobResult>();
+        for (LeasedJob leased : this.client.lease(names, 1000, 3)) {
+            JobResult result = new JobResult();
+            result.setId(leased.getId());
+            result.setSuccess(results.size() % 2 == 0);
+            result.setResult("Done".getBytes());
+            results.add(result);
+        }
+        Assert.assertEquals(3, results.size());
+
+        List<ResponseException> replies = new ArrayList<ResponseException>();
+        this.client.report(results, replies);
+
+        Assert.assertEquals(3, replies.size());
+        for (ResponseException reply : replies) {
+            Assert.assertNull(reply);
+        }
+    }
+
+    @Test
+    public void testResultStreaming() throws Exception {
+        BackgroundJob job = new BackgroundJob();
+        job.setName("testResultStreaming");
+        job.setId(UUID.randomUUID());
+        job.setTtl(3600000);
+        job.setPayload("Stream me!".getBytes());
+        job.setTtr(1000);
+
+        this.client.add(job);
+
+        LeasedJob leased = this.client.lease(Collections.singletonList("testResultStreaming"), 1000);
+        Assert.assertNotNull(leased);
+        this.client.complete(leased.getId(), "Streamed result".getBytes());
+
+        StreamingJobResult result = this.client.resultStreaming(leased.getId(), 1000);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try {
+            Assert.assertTrue(result.isSuccess());
+            Assert.assertEquals("Streamed result".length(), result.getSize());
+            result.transferTo(body);
+        } finally {
+            result.close();
+        }
+        Assert.assertEquals("Streamed result", body.toString());
+
+        // The connection is usable again once the result is closed
+        Assert.assertArrayEquals("Streamed result".getBytes(), this.client.result(leased.getId(), 1000).getResult());
+    }
+
+    @Test
+    public void testRunDeadline() throws Exception {
+        ForegroundJob job = new ForegroundJob();
+        job.setName("testRunDeadline");
+        job.setId(UUID.randomUUID());
+        job.setTimeout(60000);
+        job.setPayload("TEST".getBytes());
+        job.setTtr(1000);
+
+        // Nothing leases the job, so the server times it out within the deadline and the connection stays usable
+        long start = System.nanoTime();
+        try {
+            this.client.run(job, Deadline.after(500, TimeUnit.MILLISECONDS));
+            Assert.fail();
+        } catch (ResponseException re) {
+            Assert.assertEquals("TIMED-OUT", re.getResponseErrorCode());
+        }
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+
+        Assert.assertNull(this.client.lease(Collections.singletonList("testRunDeadline"), 10));
+    }
+
+    @Test
+    public void testAddDeadlineOnStalledServer() throws Exception {
+        // Accepts connections and never replies
+        ServerSocket server = new ServerSocket(0);
+        List<Socket> accepted = Collections.synchronizedList(new ArrayList<Socket>());
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        accepted.add(server.accept());
+                    }
+                } catch (Exception e) {
+                    // Closed
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        WorkqClient stalled = new WorkqClient("localhost", server.getLocalPort());
+        try {
+            BackgroundJob job = new BackgroundJob();
+            job.setName("testAddDeadline");
+            job.setId(UUID.randomUUID());
+            job.setTtl(60000);
+            job.setPayload("TEST".getBytes());
+            job.setTtr(1000);
+
+            for (int i = 0; i < 2; i++) {
+                long start = System.nanoTime();
+                try {
+                    stalled.add(job, Deadline.after(200, TimeUnit.MILLISECONDS));
+                    Assert.fail();
+                } catch (DeadlineExceededException dee) {
+                    Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+                }
+            }
+
+            // The connection closed by the first deadline was replaced for the second add
+            Assert.assertEquals(2, accepted.size());
+        } finally {
+            stalled.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testReconnectDeadlineOnFullBacklog() throws Exception {
+        // Never accepts, so once the client's connection and a few more fill the backlog new connects hang
+        ServerSocket server = new ServerSocket(0, 1);
+        WorkqClient stalled = new WorkqClient("localhost", server.getLocalPort());
+        List<Socket> fillers = new ArrayList<Socket>();
+        try {
+            for (int i = 0; i < 4; i++) {
+                Socket filler = new Socket();
+                fillers.add(filler);
+                try {
+                    filler.connect(server.getLocalSocketAddress(), 100);
+                } catch (Exception e) {
+                    // Backlog already full
+                }
+            }
+
+            BackgroundJob job = new BackgroundJob();
+            job.setName("testReconnectDeadline");
+            job.setId(UUID.randomUUID());
+            job.setTtl(60000);
+            job.setPayload("TEST".getBytes());
+            job.setTtr(1000);
+
+            // The first add discards the stalled connection, the second has to reconnect within its deadline
+            for (int i = 0; i < 2; i++) {
+                long start = System.nanoTime();
+                try {
+                    stalled.add(job, Deadline.after(200, TimeUnit.MILLISECONDS));
+                    Assert.fail();
+                } catch (DeadlineExceededException dee) {
+                    Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+                }
+            }
+        } finally {
+            for (Socket filler : fillers) {
+                filler.close();
+            }
+            stalled.close();
+            server.close();
+        }
+    }
 }
@@ -0,0 +1,322 @@
+package com.willwarren.cache;
+
+import com.willwarren.exceptions.DeadlineExceededException;
+import com.willwarren.exceptions.ResponseException;
+import com.willwarren.exceptions.WorkqException;
+import com.willwarren.model.Deadline;
+import com.willwarren.model.ForegroundJob;
+import com.willwarren.model.JobResult;
+import com.willwarren.model.ResponseStatus;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ResultCacheTest {
+
+    private static ForegroundJob job(String name, String payload) {
+        ForegroundJob job = new ForegroundJob();
+        job.setName(name);
+        job.setId(UUID.randomUUID());
+        job.setPayload(payload.getBytes());
+        return job;
+    }
+
+    private static ResultCache.Loader loader(final ForegroundJob job, final String result, final AtomicInteger loads) {
+        return new ResultCache.Loader() {
+            public JobResult load() throws WorkqException {
+                loads.incrementAndGet();
+                JobResult jobResult = new JobResult();
+                jobResult.setId(job.getId());
+                jobResult.setSuccess(true);
+                jobResult.setResult(result.getBytes());
+                return jobResult;
+            }
+        };
+    }
+
+    @Test
+    public void testSameNameAndPayloadIsCached() throws Exception {
+        for (boolean offHeap : new boolean[]{false, true}) {
+            ResultCache cache = new ResultCache(100, 1024, 0, offHeap);
+            AtomicInteger loads = new AtomicInteger();
+
+            ForegroundJob first = job("testCache", "payload");
+            ForegroundJob second = job("testCache", "payload");
+            ForegroundJob other = job("testCache", "other payload");
+
+            cache.get(first, loader(first, "result", loads));
+            JobResult cached = cache.get(second, loader(second, "result", loads));
+            cache.get(other, loader(other, "other result", loads));
+
+            Assert.assertEquals(2, loads.get());
+            Assert.assertEquals(second.getId(), cached.getId());
+            Assert.assertArrayEquals("result".getBytes(), cached.getResult());
+            Assert.assertEquals(1, cache.getHits());
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvictedOverMaxBytes() throws Exception {
+        ResultCache cache = new ResultCache(100, 10, 0, false);
+        AtomicInteger loads = new AtomicInteger();
+
+        ForegroundJob a = job("testEviction", "a");
+        ForegroundJob b = job("testEviction", "b");
+        ForegroundJob c = job("testEviction", "c");
+
+        cache.get(a, loader(a, "12345", loads));
+        cache.get(b, loader(b, "12345", loads));
+        cache.get(a, loader(a, "12345", loads));
+        cache.get(c, loader(c, "12345", loads));
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(10, cache.getBytes());
+
+        cache.get(a, loader(a, "12345", loads));
+        Assert.assertEquals(3, loads.get());
+        cache.get(b, loader(b, "12345", loads));
+        Assert.assertEquals(4, loads.get());
+    }
+
+    @Test
+    public void testConcurrentLookupsShareOneLoad() throws Exception {
+        final ResultCache cache = new ResultCache(100, 1024, 0, false);
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final ForegroundJob leader = job("testSingleFlight", "payload");
+        Thread leaderThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    cache.get(leader, new ResultCache.Loader() {
+                        public JobResult load() throws WorkqException {
+                            loading.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException ie) {
+                                throw new WorkqException(ie);
+                            }
+                            return loader(leader, "result", loads).load();
+                        }
+                    });
+                } catch (WorkqException we) {
+                    throw new RuntimeException(we);
+                }
+            }
+        });
+        leaderThread.start();
+        loading.await();
+
+        final List<JobResult> results = new ArrayList<JobResult>();
+        List<Thread> followers = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final ForegroundJob follower = job("testSingleFlight", "payload");
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        JobResult result = cache.get(follower, loader(follower, "result", loads));
+                        synchronized (results) {
+                            results.add(result);
+                        }
+                    } catch (WorkqException we) {
+                        throw new RuntimeException(we);
+                    }
+                }
+            });
+            followers.add(thread);
+            thread.start();
+        }
+
+        while (cache.getCoalesced() < 4) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        leaderThread.join();
+        for (Thread thread : followers) {
+            thread.join();
+        }
+
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(4, results.size());
+    }
+
+    /**
+     * Start a load for the job on another thread that blocks until released, then throws
+     */
+    private static Thread blockedLoad(ResultCache cache, ForegroundJob job, CountDownLatch loading,
+                                      CountDownLatch release, WorkqException failure) {
+        return blockedLoad(cache, job, null, loading, release, failure);
+    }
+
+    private static Thread blockedLoad(final ResultCache cache, final ForegroundJob job, final Deadline deadline,
+                                      final CountDownLatch loading, final CountDownLatch release,
+                                      final WorkqException failure) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    cache.get(job, deadline, new ResultCache.Loader() {
+                        public JobResult load() throws WorkqException {
+                            loading.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException ie) {
+                                throw new WorkqException(ie);
+                            }
+                            throw failure;
+                        }
+                    });
+                } catch (WorkqException we) {
+                    // Expected
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void testWaitForSharedLoadEndsAtDeadline() throws Exception {
+        ResultCache cache = new ResultCache(100, 1024, 0, false);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread leaderThread = blockedLoad(cache, job("testSharedDeadline", "payload"), loading, release,
+                new WorkqException("Failed"));
+        loading.await();
+
+        ForegroundJob follower = job("testSharedDeadline", "payload");
+        long start = System.nanoTime();
+        try {
+            cache.get(follower, Deadline.after(100, TimeUnit.MILLISECONDS),
+                    loader(follower, "result", new AtomicInteger()));
+            Assert.fail();
+        } catch (DeadlineExceededException dee) {
+            Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        } finally {
+            release.countDown();
+            leaderThread.join();
+        }
+    }
+
+    @Test
+    public void testLeaderDeadlineNotShared() throws Exception {
+        final ResultCache cache = new ResultCache(100, 1024, 0, false);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread leaderThread = blockedLoad(cache, job("testLeaderDeadline", "payload"), loading, release,
+                new DeadlineExceededException("Leader out of time"));
+        loading.await();
+
+        final ForegroundJob follower = job("testLeaderDeadline", "payload");
+        final AtomicInteger loads = new AtomicInteger();
+        final List<JobResult> results = new ArrayList<JobResult>();
+        Thread followerThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    results.add(cache.get(follower, Deadline.after(10, TimeUnit.SECONDS),
+                            loader(follower, "result", loads)));
+                } catch (WorkqException we) {
+                    throw new RuntimeException(we);
+                }
+            }
+        });
+        followerThread.start();
+
+        while (cache.getCoalesced() < 1) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        leaderThread.join();
+        followerThread.join();
+
+        // The follower ran the job itself rather than fail with the leader's deadline
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(1, results.size());
+        Assert.assertArrayEquals("result".getBytes(), results.get(0).getResult());
+    }
+
+    @Test
+    public void testLeaderTimeoutRetriedWithLongerDeadline() throws Exception {
+        final ResultCache cache = new ResultCache(100, 1024, 0, false);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ForegroundJob leader = job("testLeaderTimeout", "payload");
+        leader.setTimeout(60000);
+        Thread leaderThread = blockedLoad(cache, leader, Deadline.after(500, TimeUnit.MILLISECONDS), loading, release,
+                new ResponseException("TIMED-OUT", ""));
+        loading.await();
+
+        final ForegroundJob follower = job("testLeaderTimeout", "payload");
+        follower.setTimeout(60000);
+        final AtomicInteger loads = new AtomicInteger();
+        final List<JobResult> results = new ArrayList<JobResult>();
+        Thread followerThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    results.add(cache.get(follower, Deadline.after(10, TimeUnit.SECONDS),
+                            loader(follower, "result", loads)));
+                } catch (WorkqException we) {
+                    throw new RuntimeException(we);
+                }
+            }
+        });
+        followerThread.start();
+
+        while (cache.getCoalesced() < 1) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        leaderThread.join();
+        followerThread.join();
+
+        // The leader's job was timed out under its own short deadline, the follower could wait far longer
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(1, results.size());
+        Assert.assertArrayEquals("result".getBytes(), results.get(0).getResult());
+    }
+
+    @Test
+    public void testLeaderTimeoutSharedWithShorterDeadline() throws Exception {
+        final ResultCache cache = new ResultCache(100, 1024, 0, false);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ForegroundJob leader = job("testLeaderTimeoutShared", "payload");
+        leader.setTimeout(60000);
+        Thread leaderThread = blockedLoad(cache, leader, loading, release, new ResponseException("TIMED-OUT", ""));
+        loading.await();
+
+        final ForegroundJob follower = job("testLeaderTimeoutShared", "payload");
+        follower.setTimeout(60000);
+        final AtomicInteger loads = new AtomicInteger();
+        final List<WorkqException> failures = new ArrayList<WorkqException>();
+        Thread followerThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    cache.get(follower, Deadline.after(10, TimeUnit.SECONDS), loader(follower, "result", loads));
+                } catch (WorkqException we) {
+                    failures.add(we);
+                }
+            }
+        });
+        followerThread.start();
+
+        while (cache.getCoalesced() < 1) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        leaderThread.join();
+        followerThread.join();
+
+        // The leader's job had the full timeout, so running it again within the follower's deadline can't do better
+        Assert.assertEquals(0, loads.get());
+        Assert.assertEquals(1, failures.size());
+        Assert.assertEquals(ResponseStatus.TIMED_OUT, ((ResponseException) failures.get(0)).getResponseStatus());
+    }
+}
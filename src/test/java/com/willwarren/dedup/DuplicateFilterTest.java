@@ -0,0 +1,50 @@
+package com.willwarren.dedup;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.UUID;
+
+public class DuplicateFilterTest {
+
+    @Test
+    public void testAcknowledgedIdIsDuplicate() throws Exception {
+        DuplicateFilter filter = new DuplicateFilter(60000, 1000);
+        UUID id = UUID.randomUUID();
+
+        Assert.assertFalse(filter.isDuplicate(id));
+        filter.acknowledged(id);
+        Assert.assertTrue(filter.isDuplicate(id));
+        Assert.assertFalse(filter.isDuplicate(UUID.randomUUID()));
+
+        Assert.assertEquals(1, filter.getHits());
+        Assert.assertEquals(2, filter.getMisses());
+        Assert.assertEquals(1.0 / 3, filter.getHitRate(), 0.0001);
+    }
+
+    @Test
+    public void testIdsExpireAfterWindow() throws Exception {
+        DuplicateFilter filter = new DuplicateFilter(50, 1000);
+        UUID id = UUID.randomUUID();
+
+        filter.acknowledged(id);
+        Thread.sleep(100);
+
+        Assert.assertFalse(filter.isDuplicate(id));
+        Assert.assertEquals(0, filter.size());
+    }
+
+    @Test
+    public void testOldestIdsEvictedWhenFull() throws Exception {
+        DuplicateFilter filter = new DuplicateFilter(60000, 4, 1);
+        UUID first = UUID.randomUUID();
+
+        filter.acknowledged(first);
+        for (int i = 0; i < 4; i++) {
+            filter.acknowledged(UUID.randomUUID());
+        }
+
+        Assert.assertEquals(4, filter.size());
+        Assert.assertFalse(filter.isDuplicate(first));
+    }
+}
@@ -0,0 +1,28 @@
+package com.willwarren.exceptions;
+
+import com.willwarren.model.ResponseStatus;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ResponseExceptionTest {
+
+    @Test
+    public void testStacklessException() throws Exception {
+        ResponseException re = new ResponseException("TIMED-OUT", "", false);
+
+        Assert.assertEquals(0, re.getStackTrace().length);
+        Assert.assertSame(ResponseStatus.TIMED_OUT, re.getResponseStatus());
+    }
+
+    @Test
+    public void testExceptionWithStackTrace() throws Exception {
+        ResponseException re = new ResponseException("TIMED-OUT", "", true);
+
+        Assert.assertTrue(re.getStackTrace().length > 0);
+    }
+
+    @Test
+    public void testStacklessMalformedException() throws Exception {
+        Assert.assertEquals(0, new ResponseMalformedException(false).getStackTrace().length);
+    }
+}
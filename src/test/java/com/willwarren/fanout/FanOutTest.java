@@ -0,0 +1,108 @@
+package com.willwarren.fanout;
+
+import com.willwarren.exceptions.DeadlineExceededException;
+import com.willwarren.exceptions.ResponseException;
+import com.willwarren.exceptions.WorkqException;
+import com.willwarren.model.Deadline;
+import com.willwarren.model.ForegroundJob;
+import com.willwarren.model.LeasedJob;
+import com.willwarren.worker.JobHandler;
+import com.willwarren.worker.WorkqWorker;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+public class FanOutTest {
+
+    private FanOut fanOut;
+
+    private static List<ForegroundJob> jobs(String name, int count) {
+        List<ForegroundJob> jobs = new ArrayList<ForegroundJob>();
+        for (int i = 0; i < count; i++) {
+            ForegroundJob job = new ForegroundJob();
+            job.setName(name);
+            job.setId(UUID.randomUUID());
+            job.setTimeout(10000);
+            job.setPayload(("Job " + i).getBytes());
+            job.setTtr(1000);
+            jobs.add(job);
+        }
+        return jobs;
+    }
+
+    private static WorkqWorker echoWorker(String name) {
+        return new WorkqWorker("localhost", 9922, Collections.singletonList(name), new JobHandler() {
+            public byte[] handle(LeasedJob job) throws Exception {
+                return job.getPayload();
+            }
+        });
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        this.fanOut = new FanOut("localhost", 9922, 8);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.fanOut.close();
+    }
+
+    @Test
+    public void testRunAll() throws Exception {
+        WorkqWorker worker = echoWorker("testFanOut");
+        worker.setConcurrency(8);
+        worker.start();
+        try {
+            List<ForegroundJob> jobs = jobs("testFanOut", 50);
+            FanOutResult result = this.fanOut.runAll(jobs, Deadline.after(10, TimeUnit.SECONDS));
+
+            Assert.assertTrue(result.isComplete());
+            Assert.assertEquals(50, result.getSuccessCount());
+            for (ForegroundJob job : jobs) {
+                Assert.assertArrayEquals(job.getPayload(), result.getResults().get(job.getId()).getResult());
+            }
+        } finally {
+            worker.stop();
+        }
+    }
+
+    @Test
+    public void testQuorum() throws Exception {
+        WorkqWorker worker = echoWorker("testFanOutQuorum");
+        worker.start();
+        try {
+            FanOutResult result = this.fanOut.runAll(jobs("testFanOutQuorum", 20), 5, null);
+
+            Assert.assertTrue(result.getSuccessCount() >= 5);
+        } finally {
+            worker.stop();
+        }
+    }
+
+    @Test
+    public void testDeadlinePartialResults() throws Exception {
+        // Nothing handles these jobs, so each one times out or is still pending at the deadline
+        long start = System.nanoTime();
+        FanOutResult result = this.fanOut.runAll(jobs("testFanOutDeadline", 20),
+                Deadline.after(300, TimeUnit.MILLISECONDS));
+
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        Assert.assertTrue(result.getResults().isEmpty());
+        Assert.assertEquals(20, result.getErrors().size() + result.getPending().size());
+        for (WorkqException error : result.getErrors().values()) {
+            if (error instanceof ResponseException) {
+                Assert.assertEquals("TIMED-OUT", ((ResponseException) error).getResponseErrorCode());
+            } else {
+                Assert.assertTrue(error instanceof DeadlineExceededException);
+            }
+        }
+    }
+}
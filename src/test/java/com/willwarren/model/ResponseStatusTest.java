@@ -0,0 +1,25 @@
+package com.willwarren.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ResponseStatusTest {
+
+    @Test
+    public void testKnownCodes() throws Exception {
+        for (ResponseStatus status : ResponseStatus.values()) {
+            if (status != ResponseStatus.UNKNOWN) {
+                Assert.assertSame(status, ResponseStatus.fromCode(status.getCode()));
+            }
+        }
+        Assert.assertSame(ResponseStatus.TIMED_OUT, ResponseStatus.fromCode("TIMED-OUT"));
+    }
+
+    @Test
+    public void testUnknownCodes() throws Exception {
+        Assert.assertSame(ResponseStatus.UNKNOWN, ResponseStatus.fromCode("NEW-ERROR"));
+        Assert.assertSame(ResponseStatus.UNKNOWN, ResponseStatus.fromCode("timed-out"));
+        Assert.assertSame(ResponseStatus.UNKNOWN, ResponseStatus.fromCode(""));
+        Assert.assertSame(ResponseStatus.UNKNOWN, ResponseStatus.fromCode(null));
+    }
+}
@@ -0,0 +1,78 @@
+package com.willwarren.ratelimit;
+
+import com.willwarren.exceptions.DeadlineExceededException;
+import com.willwarren.exceptions.RateLimitedException;
+import com.willwarren.model.Deadline;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class RateLimiterTest {
+
+    @Test
+    public void testUnlimitedName() throws Exception {
+        RateLimiter limiter = new RateLimiter();
+        limiter.setLimit("limited", 1, 1, RateLimitPolicy.REJECT);
+
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(0, limiter.acquire("unlimited", true, null));
+        }
+    }
+
+    @Test
+    public void testRejectAfterBurst() throws Exception {
+        RateLimiter limiter = new RateLimiter();
+        limiter.setLimit("name", 1, 3, RateLimitPolicy.REJECT);
+
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(0, limiter.acquire("name", true, null));
+        }
+        try {
+            limiter.acquire("name", true, null);
+            Assert.fail();
+        } catch (RateLimitedException rle) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testDelayHandsOutSlots() throws Exception {
+        RateLimiter limiter = new RateLimiter();
+        limiter.setLimit("name", 10, 1, RateLimitPolicy.DELAY);
+
+        Assert.assertEquals(0, limiter.acquire("name", true, null));
+        long second = limiter.acquire("name", true, null);
+        long third = limiter.acquire("name", true, null);
+
+        Assert.assertTrue(second > TimeUnit.MILLISECONDS.toNanos(50));
+        Assert.assertTrue(second <= TimeUnit.MILLISECONDS.toNanos(100));
+        Assert.assertTrue(third > TimeUnit.MILLISECONDS.toNanos(150));
+        Assert.assertTrue(third <= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test
+    public void testDelayWaitsWhenJobCantBeScheduled() throws Exception {
+        RateLimiter limiter = new RateLimiter();
+        limiter.setLimit("name", 10, 1, RateLimitPolicy.DELAY);
+
+        limiter.acquire("name", false, null);
+        long start = System.nanoTime();
+        Assert.assertEquals(0, limiter.acquire("name", false, null));
+        Assert.assertTrue(System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void testWaitPastDeadline() throws Exception {
+        RateLimiter limiter = new RateLimiter();
+        limiter.setLimit("name", 1, 1, RateLimitPolicy.WAIT);
+
+        limiter.acquire("name", true, Deadline.after(100, TimeUnit.MILLISECONDS));
+        try {
+            limiter.acquire("name", true, Deadline.after(100, TimeUnit.MILLISECONDS));
+            Assert.fail();
+        } catch (DeadlineExceededException dee) {
+            // Expected
+        }
+    }
+}
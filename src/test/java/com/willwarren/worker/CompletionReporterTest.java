@@ -0,0 +1,119 @@
+package com.willwarren.worker;
+
+import com.willwarren.model.JobResult;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class CompletionReporterTest {
+
+    private static JobResult result() {
+        JobResult result = new JobResult();
+        result.setId(UUID.randomUUID());
+        result.setSuccess(true);
+        result.setResult("done".getBytes());
+        return result;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new IOException("Connection closed");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString("UTF-8");
+    }
+
+    /**
+     * Read one pipelined "complete" or "fail" command and its body
+     *
+     * @return The reported job id
+     */
+    private static String readReport(InputStream in) throws IOException {
+        String[] parts = readLine(in).split(" ");
+        int size = Integer.parseInt(parts[2]);
+        for (int i = 0; i < size + 2; i++) {
+            if (in.read() == -1) {
+                throw new IOException("Connection closed");
+            }
+        }
+        return parts[1];
+    }
+
+    @Test
+    public void testOnlyUnacknowledgedResultsResent() throws Exception {
+        final ServerSocket server = new ServerSocket(0);
+        final List<String> resent = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch tailResent = new CountDownLatch(2);
+
+        // The first connection acknowledges two of four results, rejecting the second, then drops. The second
+        // connection rejects the first re-sent result, as the server would one whose reply was lost.
+        Thread stub = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Socket first = server.accept();
+                    InputStream in = first.getInputStream();
+                    OutputStream out = first.getOutputStream();
+                    for (int i = 0; i < 4; i++) {
+                        readReport(in);
+                    }
+                    out.write("+OK\r\n-NOT-FOUND\r\n".getBytes());
+                    out.flush();
+                    first.close();
+
+                    Socket second = server.accept();
+                    in = second.getInputStream();
+                    out = second.getOutputStream();
+                    for (int i = 0; i < 2; i++) {
+                        resent.add(readReport(in));
+                        out.write((i == 0 ? "-NOT-FOUND\r\n" : "+OK\r\n").getBytes());
+                        out.flush();
+                        tailResent.countDown();
+                    }
+                } catch (IOException ioe) {
+                    // Closed
+                }
+            }
+        });
+        stub.setDaemon(true);
+        stub.start();
+
+        CompletionReporter reporter = new CompletionReporter("localhost", server.getLocalPort(), 4, 200, 16);
+        List<JobResult> results = new ArrayList<JobResult>();
+        try {
+            for (int i = 0; i < 4; i++) {
+                JobResult result = result();
+                results.add(result);
+                reporter.submit(result);
+            }
+
+            Assert.assertTrue(tailResent.await(10, TimeUnit.SECONDS));
+        } finally {
+            reporter.close();
+            server.close();
+        }
+
+        Assert.assertEquals(2, resent.size());
+        Assert.assertEquals(results.get(2).getId().toString(), resent.get(0));
+        Assert.assertEquals(results.get(3).getId().toString(), resent.get(1));
+        // NOT-FOUND counts on the second result's first attempt, but not on the third result's re-send
+        Assert.assertEquals(1, reporter.getRejected());
+    }
+}
@@ -0,0 +1,97 @@
+package com.willwarren.worker;
+
+import com.willwarren.model.LeasedJob;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+public class LeaseBufferTest {
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private static LeasedJob job() {
+        LeasedJob job = new LeasedJob();
+        job.setId(UUID.randomUUID());
+        job.setName("test");
+        job.setPayload(new byte[0]);
+        return job;
+    }
+
+    @Test
+    public void testDepthBeforeMeasurements() throws Exception {
+        Assert.assertEquals(4, new LeaseBuffer(4, 16, 0, 0).targetDepth());
+        Assert.assertEquals(2, new LeaseBuffer(4, 2, 0, 0).targetDepth());
+    }
+
+    @Test
+    public void testDepthCoversLeaseRoundTrip() throws Exception {
+        LeaseBuffer buffer = new LeaseBuffer(4, 16, 0, 0);
+        buffer.recordLeaseLatency(millis(10));
+        buffer.recordHandlerTime(millis(4));
+
+        // Four handlers taking 4ms each start a job every 1ms, so a 10ms round trip needs 10 jobs, plus one
+        Assert.assertEquals(11, buffer.targetDepth());
+    }
+
+    @Test
+    public void testDepthClampedByMaxPrefetch() throws Exception {
+        LeaseBuffer buffer = new LeaseBuffer(4, 8, 0, 0);
+        buffer.recordLeaseLatency(millis(10));
+        buffer.recordHandlerTime(millis(4));
+
+        Assert.assertEquals(8, buffer.targetDepth());
+    }
+
+    @Test
+    public void testDepthClampedByTtr() throws Exception {
+        // 10ms TTR, less 2ms that has to be left and 4ms to handle the job, leaves 4ms of buffering at 1ms per job
+        LeaseBuffer buffer = new LeaseBuffer(4, 16, 10, 2);
+        buffer.recordLeaseLatency(millis(10));
+        buffer.recordHandlerTime(millis(4));
+
+        Assert.assertEquals(4, buffer.targetDepth());
+
+        // Never below one, even if a job can't be handled within its TTR at all
+        LeaseBuffer tight = new LeaseBuffer(4, 16, 3, 2);
+        tight.recordLeaseLatency(millis(10));
+        tight.recordHandlerTime(millis(4));
+
+        Assert.assertEquals(1, tight.targetDepth());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        LeaseBuffer buffer = new LeaseBuffer(1, 16, 1000, 200);
+        long leasedAt = System.nanoTime();
+        buffer.put(job(), leasedAt, leasedAt + millis(1000));
+        LeaseBuffer.Entry entry = buffer.take();
+
+        Assert.assertFalse(buffer.isExpired(entry, leasedAt + millis(700)));
+        Assert.assertTrue(buffer.isExpired(entry, leasedAt + millis(900)));
+        Assert.assertTrue(buffer.isExpired(entry, leasedAt + millis(1100)));
+    }
+
+    @Test
+    public void testNoExpiryWithoutTtr() throws Exception {
+        LeaseBuffer buffer = new LeaseBuffer(1, 16, 0, 200);
+        long leasedAt = System.nanoTime();
+        buffer.put(job(), leasedAt, leasedAt);
+
+        Assert.assertFalse(buffer.isExpired(buffer.take(), leasedAt + millis(10000)));
+    }
+
+    @Test
+    public void testCloseAbandonsJobs() throws Exception {
+        LeaseBuffer buffer = new LeaseBuffer(1, 16, 0, 0);
+        buffer.put(job(), 0, 0);
+        buffer.close();
+        buffer.put(job(), 0, 0);
+
+        Assert.assertTrue(buffer.isEmpty());
+        Assert.assertNull(buffer.take());
+    }
+}
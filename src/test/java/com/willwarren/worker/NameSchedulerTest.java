@@ -0,0 +1,116 @@
+package com.willwarren.worker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class NameSchedulerTest {
+
+    private static int countLeasesWith(List<List<String>> leases, String name) {
+        int count = 0;
+        for (List<String> lease : leases) {
+            if (lease.contains(name)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testLeasesSplitByWeight() throws Exception {
+        Map<String, Integer> weights = new HashMap<String, Integer>();
+        weights.put("hot", 3);
+        NameScheduler scheduler = new NameScheduler(Arrays.asList("hot", "cold"), weights,
+                Collections.<String, Integer>emptyMap(), 2);
+
+        List<List<String>> leases = scheduler.plan(100);
+
+        Assert.assertEquals(6, leases.size());
+        Assert.assertEquals(6, countLeasesWith(leases, "hot"));
+        Assert.assertEquals(2, countLeasesWith(leases, "cold"));
+    }
+
+    @Test
+    public void testSpentNamesLeftOutUntilNextRound() throws Exception {
+        NameScheduler scheduler = new NameScheduler(Arrays.asList("a", "b"), Collections.<String, Integer>emptyMap(),
+                Collections.<String, Integer>emptyMap(), 2);
+
+        scheduler.plan(100);
+        scheduler.leased("a");
+        scheduler.leased("a");
+        scheduler.finished("a");
+        scheduler.finished("a");
+
+        List<List<String>> leases = scheduler.plan(100);
+        Assert.assertEquals(2, leases.size());
+        Assert.assertEquals(0, countLeasesWith(leases, "a"));
+
+        // A short batch means b had nothing waiting, so a gets credit again
+        scheduler.idle();
+        leases = scheduler.plan(100);
+        Assert.assertEquals(2, countLeasesWith(leases, "a"));
+    }
+
+    @Test
+    public void testIdleNameDoesNotHoldUpBusyName() throws Exception {
+        NameScheduler scheduler = new NameScheduler(Arrays.asList("hot", "cold"),
+                Collections.<String, Integer>emptyMap(), Collections.<String, Integer>emptyMap(), 4);
+
+        // Every lease comes back with a hot job, so cold has none waiting
+        for (int round = 0; round < 3; round++) {
+            List<List<String>> leases = scheduler.plan(100);
+            Assert.assertEquals(4, leases.size());
+            Assert.assertEquals(4, countLeasesWith(leases, "hot"));
+            for (int i = 0; i < leases.size(); i++) {
+                scheduler.leased("hot");
+                scheduler.finished("hot");
+            }
+            scheduler.returned(leases);
+        }
+    }
+
+    @Test
+    public void testAtMostOneLeaseForIdleNames() throws Exception {
+        Map<String, Integer> caps = new HashMap<String, Integer>();
+        caps.put("hot", 2);
+        NameScheduler scheduler = new NameScheduler(Arrays.asList("hot", "cold"),
+                Collections.<String, Integer>emptyMap(), caps, 4);
+
+        List<List<String>> leases = scheduler.plan(100);
+        scheduler.leased("hot");
+        scheduler.leased("hot");
+        scheduler.returned(leases);
+
+        // hot is at its cap and cold had nothing, so there is no point pipelining leases for cold alone
+        leases = scheduler.plan(100);
+        Assert.assertEquals(1, leases.size());
+        Assert.assertEquals(Collections.singletonList("cold"), leases.get(0));
+
+        // Until it returns a job
+        scheduler.leased("cold");
+        scheduler.returned(leases);
+        leases = scheduler.plan(100);
+        Assert.assertEquals(3, leases.size());
+    }
+
+    @Test
+    public void testCapLimitsLeases() throws Exception {
+        Map<String, Integer> caps = new HashMap<String, Integer>();
+        caps.put("capped", 1);
+        NameScheduler scheduler = new NameScheduler(Arrays.asList("capped", "free"),
+                Collections.<String, Integer>emptyMap(), caps, 4);
+
+        List<List<String>> leases = scheduler.plan(100);
+        Assert.assertEquals(1, countLeasesWith(leases, "capped"));
+
+        scheduler.leased("capped");
+        leases = scheduler.plan(100);
+        Assert.assertEquals(0, countLeasesWith(leases, "capped"));
+        Assert.assertEquals(4, countLeasesWith(leases, "free"));
+    }
+}
@@ -0,0 +1,30 @@
+package com.willwarren.worker;
+
+import com.willwarren.model.JobResult;
+import com.willwarren.model.LeasedJob;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.UUID;
+
+public class WorkqWorkerTest {
+
+    @Test
+    public void testExpiredJobAbandoned() throws Exception {
+        LeasedJob job = new LeasedJob();
+        job.setId(UUID.randomUUID());
+
+        Assert.assertNull(WorkqWorker.expiryResult(job, ExpiryPolicy.ABANDON));
+    }
+
+    @Test
+    public void testExpiredJobFailed() throws Exception {
+        LeasedJob job = new LeasedJob();
+        job.setId(UUID.randomUUID());
+
+        JobResult result = WorkqWorker.expiryResult(job, ExpiryPolicy.FAIL);
+        Assert.assertNotNull(result);
+        Assert.assertEquals(job.getId(), result.getId());
+        Assert.assertFalse(result.isSuccess());
+    }
+}
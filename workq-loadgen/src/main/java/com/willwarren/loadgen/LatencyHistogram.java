@@ -0,0 +1,107 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Will Warren
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.willwarren.loadgen;
+
+/**
+ * Log-linear histogram of latencies in nanoseconds. Values below 128ns are counted exactly, larger ones in buckets
+ * 1/64th of their power of two wide, so every recorded value is reported to within about 1.6%.
+ * <p>
+ * Not thread safe: each thread records into its own histogram, and they are merged for reporting.
+ */
+public class LatencyHistogram {
+
+    private final static int LINEAR_BUCKETS = 128;
+    private final static int SUB_BUCKET_BITS = 6;
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[bucketFor(Long.MAX_VALUE) + 1];
+    private long totalCount;
+    private long max;
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[bucketFor(value)]++;
+        totalCount++;
+        max = Math.max(max, value);
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        max = Math.max(max, other.max);
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @param percentile Between 0 and 100
+     * @return The highest value that falls in the same bucket as the value at this percentile, or 0 if empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueIn(i), max);
+            }
+        }
+        return max;
+    }
+
+    static int bucketFor(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+
+        // The top SUB_BUCKET_BITS + 1 bits of the value pick the bucket within its power of two
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS));
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+    }
+
+    static long highestValueIn(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long mantissa = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return mantissa * width + width - 1;
+    }
+}
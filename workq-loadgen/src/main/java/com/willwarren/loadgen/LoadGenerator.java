@@ -0,0 +1,305 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Will Warren
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.willwarren.loadgen;
+
+import com.willwarren.WorkqClient;
+import com.willwarren.exceptions.WorkqException;
+import com.willwarren.model.BackgroundJob;
+import com.willwarren.model.ForegroundJob;
+import com.willwarren.model.LeasedJob;
+import com.willwarren.worker.JobHandler;
+import com.willwarren.worker.WorkqWorker;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives {@link WorkqClient} at a fixed, open loop arrival rate and reports throughput and latency percentiles.
+ * <p>
+ * Operations are scheduled at evenly spaced intended start times, independent of how fast earlier ones complete, and
+ * queued for a fixed number of connections. Latency is measured from the intended start time rather than from when a
+ * connection got around to sending the operation, so time spent queued behind a slow reply is counted instead of
+ * silently omitted. Service time, measured from the actual send, is reported next to it for comparison.
+ */
+public class LoadGenerator {
+
+    private final static double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    private final LoadOptions options;
+    private final BlockingQueue<Long> intendedStarts = new LinkedBlockingQueue<Long>();
+    private final List<Connection> connections = new ArrayList<Connection>();
+    private volatile long measureFrom;
+
+    /**
+     * One client connection and the latencies it recorded
+     */
+    private class Connection implements Runnable {
+
+        final WorkqClient client;
+        final Random random = new Random();
+        final Map<Operation, LatencyHistogram> latency = histograms();
+        final Map<Operation, LatencyHistogram> serviceTime = histograms();
+        final Map<Operation, long[]> errors = new EnumMap<Operation, long[]>(Operation.class);
+
+        Connection(WorkqClient client) {
+            this.client = client;
+            for (Operation operation : Operation.values()) {
+                errors.put(operation, new long[1]);
+            }
+        }
+
+        public void run() {
+            while (true) {
+                long intendedStart;
+                try {
+                    intendedStart = intendedStarts.take();
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                if (intendedStart < 0) {
+                    return;
+                }
+
+                Operation operation = options.getOperations().next(random);
+                long start = System.nanoTime();
+                boolean failed = false;
+                try {
+                    execute(operation);
+                } catch (WorkqException we) {
+                    failed = true;
+                }
+                long end = System.nanoTime();
+
+                if (intendedStart >= measureFrom) {
+                    latency.get(operation).record(end - intendedStart);
+                    serviceTime.get(operation).record(end - start);
+                    if (failed) {
+                        errors.get(operation)[0]++;
+                    }
+                }
+            }
+        }
+
+        void execute(Operation operation) throws WorkqException {
+            String name = options.getNames().next(random);
+            byte[] payload = new byte[options.getPayloadSizes().next(random)];
+            random.nextBytes(payload);
+
+            switch (operation) {
+                case ADD:
+                    BackgroundJob backgroundJob = new BackgroundJob();
+                    backgroundJob.setId(UUID.randomUUID());
+                    backgroundJob.setName(name);
+                    backgroundJob.setTtr(options.getTtr());
+                    backgroundJob.setTtl(options.getTtl());
+                    backgroundJob.setPayload(payload);
+                    client.add(backgroundJob);
+                    break;
+                case RUN:
+                    ForegroundJob foregroundJob = new ForegroundJob();
+                    foregroundJob.setId(UUID.randomUUID());
+                    foregroundJob.setName(name);
+                    foregroundJob.setTtr(options.getTtr());
+                    foregroundJob.setTimeout(options.getTimeout());
+                    foregroundJob.setPayload(payload);
+                    client.run(foregroundJob);
+                    break;
+                case LEASE:
+                    LeasedJob leased = client.lease(Collections.singletonList(name), options.getLeaseWaitTimeout());
+                    if (leased != null) {
+                        client.complete(leased.getId(), null);
+                    }
+                    break;
+            }
+        }
+    }
+
+    public LoadGenerator(LoadOptions options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 1 && "--help".equals(args[0])) {
+            System.out.print(LoadOptions.usage());
+            return;
+        }
+
+        LoadOptions options;
+        try {
+            options = LoadOptions.parse(args);
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.err.print(LoadOptions.usage());
+            System.exit(2);
+            return;
+        }
+
+        LocalServer server = null;
+        if (options.isLocal()) {
+            server = new LocalServer();
+            options.setHost(server.getHost());
+            options.setPort(server.getPort());
+        }
+
+        try {
+            new LoadGenerator(options).run(System.out);
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    /**
+     * Run the warmup and measured phases, then print the report
+     */
+    public void run(PrintStream report) throws IOException, InterruptedException {
+        WorkqWorker worker = startWorker();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < options.getConnections(); i++) {
+            Connection connection = new Connection(new WorkqClient(options.getHost(), options.getPort()));
+            connections.add(connection);
+            Thread thread = new Thread(connection, "loadgen-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / options.getRate());
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(options.getWarmup());
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(options.getDuration());
+
+        // Release every operation whose intended start has passed, however far behind the connections are
+        long sent = 0;
+        long next = start;
+        while (next < end) {
+            long now = System.nanoTime();
+            while (next <= now && next < end) {
+                intendedStarts.add(next);
+                sent++;
+                next = start + (long) (sent * (double) interval);
+            }
+            LockSupport.parkNanos(Math.min(next - now, TimeUnit.MILLISECONDS.toNanos(1)));
+        }
+
+        for (int i = 0; i < threads.size(); i++) {
+            intendedStarts.add(-1L);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - measureFrom;
+
+        for (Connection connection : connections) {
+            connection.client.close();
+        }
+        if (worker != null) {
+            worker.stop();
+        }
+
+        report(report, elapsed);
+    }
+
+    /**
+     * Start a worker that echoes payloads back, so "run" operations against a real server have something to run them
+     */
+    private WorkqWorker startWorker() throws IOException {
+        if (options.getWorkers() < 1 || !options.getOperations().getValues().contains(Operation.RUN)) {
+            return null;
+        }
+
+        WorkqWorker worker = new WorkqWorker(options.getHost(), options.getPort(), options.getNames().getValues(),
+                new JobHandler() {
+                    public byte[] handle(LeasedJob job) {
+                        return job.getPayload();
+                    }
+                });
+        worker.setConcurrency(options.getWorkers());
+        worker.setTtr(options.getTtr());
+        worker.start();
+        return worker;
+    }
+
+    private void report(PrintStream out, long elapsed) {
+        out.printf("%s ops/s target, %d connections, %ds measured after %ds warmup%n",
+                options.getRate(), options.getConnections(), options.getDuration(), options.getWarmup());
+        out.printf("%-6s %10s %10s %8s  %-9s", "op", "count", "ops/s", "errors", "");
+        for (double percentile : PERCENTILES) {
+            out.printf(" %10s", "p" + percentile);
+        }
+        out.printf(" %10s%n", "max");
+
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram latency = new LatencyHistogram();
+            LatencyHistogram serviceTime = new LatencyHistogram();
+            long errors = 0;
+            for (Connection connection : connections) {
+                latency.add(connection.latency.get(operation));
+                serviceTime.add(connection.serviceTime.get(operation));
+                errors += connection.errors.get(operation)[0];
+            }
+            if (latency.getTotalCount() == 0) {
+                continue;
+            }
+
+            double throughput = latency.getTotalCount() / (elapsed / 1e9);
+            out.printf("%-6s %10d %10.1f %8d", operation.name().toLowerCase(), latency.getTotalCount(), throughput,
+                    errors);
+            printPercentiles(out, "latency", latency);
+            out.printf("%-6s %10s %10s %8s", "", "", "", "");
+            printPercentiles(out, "service", serviceTime);
+        }
+        out.println("Latencies in ms. latency is measured from the intended start and is the one to size against;"
+                + " service omits time queued for a connection.");
+    }
+
+    private void printPercentiles(PrintStream out, String label, LatencyHistogram histogram) {
+        out.printf("  %-9s", label);
+        for (double percentile : PERCENTILES) {
+            out.printf(" %10.3f", histogram.getValueAtPercentile(percentile) / 1e6);
+        }
+        out.printf(" %10.3f%n", histogram.getMax() / 1e6);
+    }
+
+    private static Map<Operation, LatencyHistogram> histograms() {
+        Map<Operation, LatencyHistogram> histograms = new EnumMap<Operation, LatencyHistogram>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            histograms.put(operation, new LatencyHistogram());
+        }
+        return histograms;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Will Warren
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.willwarren.loadgen;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line options of the {@link LoadGenerator}
+ */
+public class LoadOptions {
+
+    private String host = "localhost";
+    private int port = 9922;
+    private boolean local;
+    private double rate = 1000;
+    private int duration = 30;
+    private int warmup = 5;
+    private int connections = 4;
+    private int workers;
+    private WeightedChoice<Operation> operations = new WeightedChoice<Operation>();
+    private WeightedChoice<String> names = new WeightedChoice<String>();
+    private WeightedChoice<Integer> payloadSizes = new WeightedChoice<Integer>();
+    private int ttr = 5000;
+    private int ttl = 60000;
+    private int timeout = 5000;
+    private int leaseWaitTimeout = 10;
+
+    public static String usage() {
+        return "Usage: LoadGenerator [options]\n"
+                + "  --host HOST             workq host (localhost)\n"
+                + "  --port PORT             workq port (9922)\n"
+                + "  --local                 run against an in-process stand-in server instead\n"
+                + "  --rate OPS              operations per second, sent open loop (1000)\n"
+                + "  --duration SECONDS      measured run time (30)\n"
+                + "  --warmup SECONDS        unmeasured run time before that (5)\n"
+                + "  --connections N         client connections, one operation in flight on each (4)\n"
+                + "  --workers N             handler threads of a worker started to complete run jobs (0)\n"
+                + "  --mix OP=W,...          weighted mix of add, run and lease (add=1)\n"
+                + "  --names NAME=W,...      weighted mix of job names (loadgen=1)\n"
+                + "  --payload-sizes B=W,... weighted mix of payload sizes in bytes (128=1)\n"
+                + "  --ttr MS                job TTR (5000)\n"
+                + "  --ttl MS                background job TTL (60000)\n"
+                + "  --timeout MS            foreground job timeout (5000)\n"
+                + "  --lease-wait MS         lease wait timeout (10)\n";
+    }
+
+    public static LoadOptions parse(String[] args) {
+        LoadOptions options = new LoadOptions();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--local".equals(arg)) {
+                options.local = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+
+            String value = args[++i];
+            if ("--host".equals(arg)) {
+                options.host = value;
+            } else if ("--port".equals(arg)) {
+                options.port = Integer.parseInt(value);
+            } else if ("--rate".equals(arg)) {
+                options.rate = Double.parseDouble(value);
+            } else if ("--duration".equals(arg)) {
+                options.duration = Integer.parseInt(value);
+            } else if ("--warmup".equals(arg)) {
+                options.warmup = Integer.parseInt(value);
+            } else if ("--connections".equals(arg)) {
+                options.connections = Integer.parseInt(value);
+            } else if ("--workers".equals(arg)) {
+                options.workers = Integer.parseInt(value);
+            } else if ("--mix".equals(arg)) {
+                for (String[] pair : pairs(value)) {
+                    options.operations.add(Operation.valueOf(pair[0].toUpperCase()), Long.parseLong(pair[1]));
+                }
+            } else if ("--names".equals(arg)) {
+                for (String[] pair : pairs(value)) {
+                    options.names.add(pair[0], Long.parseLong(pair[1]));
+                }
+            } else if ("--payload-sizes".equals(arg)) {
+                for (String[] pair : pairs(value)) {
+                    options.payloadSizes.add(Integer.valueOf(pair[0]), Long.parseLong(pair[1]));
+                }
+            } else if ("--ttr".equals(arg)) {
+                options.ttr = Integer.parseInt(value);
+            } else if ("--ttl".equals(arg)) {
+                options.ttl = Integer.parseInt(value);
+            } else if ("--timeout".equals(arg)) {
+                options.timeout = Integer.parseInt(value);
+            } else if ("--lease-wait".equals(arg)) {
+                options.leaseWaitTimeout = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        if (options.operations.isEmpty()) {
+            options.operations.add(Operation.ADD, 1);
+        }
+        if (options.names.isEmpty()) {
+            options.names.add("loadgen", 1);
+        }
+        if (options.payloadSizes.isEmpty()) {
+            options.payloadSizes.add(128, 1);
+        }
+        if (options.rate <= 0 || options.connections < 1) {
+            throw new IllegalArgumentException("Rate and connections must be positive");
+        }
+
+        return options;
+    }
+
+    /**
+     * Split "a=1,b=2" into its pairs, with a weight of 1 for values given without one
+     */
+    private static List<String[]> pairs(String value) {
+        List<String[]> pairs = new ArrayList<String[]>();
+        for (String item : value.split(",")) {
+            String[] pair = item.split("=", 2);
+            pairs.add(pair.length == 2 ? pair : new String[]{pair[0], "1"});
+        }
+        return pairs;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public boolean isLocal() {
+        return local;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public int getDuration() {
+        return duration;
+    }
+
+    public int getWarmup() {
+        return warmup;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public WeightedChoice<Operation> getOperations() {
+        return operations;
+    }
+
+    public WeightedChoice<String> getNames() {
+        return names;
+    }
+
+    public WeightedChoice<Integer> getPayloadSizes() {
+        return payloadSizes;
+    }
+
+    public int getTtr() {
+        return ttr;
+    }
+
+    public int getTtl() {
+        return ttl;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public int getLeaseWaitTimeout() {
+        return leaseWaitTimeout;
+    }
+}
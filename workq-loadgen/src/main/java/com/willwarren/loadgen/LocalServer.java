@@ -0,0 +1,266 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Will Warren
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.willwarren.loadgen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-process stand-in for a workq server, speaking just enough of the protocol for the load generator: add, schedule,
+ * run, lease, complete, fail and result. "run" jobs are answered straight away with their own payload, so it measures
+ * the client and the network stack rather than job execution. Nothing expires, but results are dropped once read, and
+ * only the newest MAX_RESULTS are kept.
+ */
+public class LocalServer implements Closeable {
+
+    private final static byte[] CRLF = "\r\n".getBytes();
+
+    // Lease runs report results that are never asked for, so only the newest are kept
+    private final static int MAX_RESULTS = 100000;
+
+    private final ServerSocket serverSocket;
+    private final Thread acceptThread;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition jobAdded = lock.newCondition();
+    private final Map<String, ArrayDeque<String[]>> queues = new HashMap<String, ArrayDeque<String[]>>();
+    private final Map<String, byte[]> payloads = new HashMap<String, byte[]>();
+    private final Map<String, byte[]> results = new LinkedHashMap<String, byte[]>() {
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_RESULTS;
+        }
+    };
+
+    public LocalServer() throws IOException {
+        serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        acceptThread = new Thread(new Runnable() {
+            public void run() {
+                acceptLoop();
+            }
+        }, "workq-local-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread connectionThread = new Thread(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "workq-local-connection");
+                connectionThread.setDaemon(true);
+                connectionThread.start();
+            } catch (IOException ioe) {
+                // Closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+            while (true) {
+                String line = readLine(in);
+                String[] parts = line.split(" ");
+                handle(parts, in, out);
+
+                // Keep pipelined replies together
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (IOException ioe) {
+            // Client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                // Ignore
+            }
+        }
+    }
+
+    private void handle(String[] parts, InputStream in, OutputStream out) throws IOException {
+        String command = parts[0];
+
+        if ("add".equals(command) || "schedule".equals(command)) {
+            // schedule has the time before the payload size
+            byte[] payload = readData(in, parts["add".equals(command) ? 5 : 6]);
+            lock.lock();
+            try {
+                payloads.put(parts[1], payload);
+                ArrayDeque<String[]> queue = queues.get(parts[2]);
+                if (queue == null) {
+                    queue = new ArrayDeque<String[]>();
+                    queues.put(parts[2], queue);
+                }
+                queue.addLast(new String[]{parts[1], parts[2]});
+                jobAdded.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            writeLine(out, "+OK");
+        } else if ("run".equals(command)) {
+            byte[] payload = readData(in, parts[5]);
+            writeResult(out, parts[1], payload);
+        } else if ("lease".equals(command)) {
+            String[] job = lease(parts);
+            if (job == null) {
+                writeLine(out, "-TIMED-OUT");
+            } else {
+                writeLine(out, "+OK 1");
+                writeLine(out, job[0] + " " + job[1] + " " + job[2].length());
+                out.write(job[2].getBytes("ISO-8859-1"));
+                out.write(CRLF);
+            }
+        } else if ("complete".equals(command) || "fail".equals(command)) {
+            byte[] result = readData(in, parts[2]);
+            lock.lock();
+            try {
+                results.put(parts[1], result);
+                payloads.remove(parts[1]);
+            } finally {
+                lock.unlock();
+            }
+            writeLine(out, "+OK");
+        } else if ("result".equals(command)) {
+            byte[] result;
+            lock.lock();
+            try {
+                // Each result is only read once here, so don't hold on to it
+                result = results.remove(parts[1]);
+            } finally {
+                lock.unlock();
+            }
+            if (result == null) {
+                writeLine(out, "-NOT-FOUND");
+            } else {
+                writeResult(out, parts[1], result);
+            }
+        } else {
+            writeLine(out, "-CLIENT-ERROR Unknown command");
+        }
+    }
+
+    /**
+     * @return id, name and payload of a leased job, or null if none was added before the wait timeout
+     */
+    private String[] lease(String[] parts) throws IOException {
+        long waitTimeout = Long.parseLong(parts[parts.length - 1]);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTimeout);
+
+        lock.lock();
+        try {
+            while (true) {
+                for (int i = 1; i < parts.length - 1; i++) {
+                    ArrayDeque<String[]> queue = queues.get(parts[i]);
+                    if (queue != null && !queue.isEmpty()) {
+                        String[] job = queue.pollFirst();
+                        byte[] payload = payloads.get(job[0]);
+                        return new String[]{job[0], job[1], new String(payload, "ISO-8859-1")};
+                    }
+                }
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                jobAdded.awaitNanos(remaining);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeResult(OutputStream out, String id, byte[] result) throws IOException {
+        writeLine(out, "+OK 1");
+        writeLine(out, id + " 1 " + result.length);
+        out.write(result);
+        out.write(CRLF);
+    }
+
+    private void writeLine(OutputStream out, String line) throws IOException {
+        out.write(line.getBytes("UTF-8"));
+        out.write(CRLF);
+    }
+
+    private byte[] readData(InputStream in, String size) throws IOException {
+        byte[] data = new byte[Integer.parseInt(size)];
+        new DataInputStream(in).readFully(data);
+        readLine(in);
+        return data;
+    }
+
+    private String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                String text = line.toString("UTF-8");
+                return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+            }
+            line.write(b);
+        }
+        throw new EOFException();
+    }
+}
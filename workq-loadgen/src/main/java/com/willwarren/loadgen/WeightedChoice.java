@@ -0,0 +1,68 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Will Warren
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.willwarren.loadgen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Picks values at random in proportion to their weights
+ */
+public class WeightedChoice<T> {
+
+    private final List<T> values = new ArrayList<T>();
+    private final List<Long> cumulativeWeights = new ArrayList<Long>();
+    private long totalWeight;
+
+    public WeightedChoice<T> add(T value, long weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Weight must be positive: " + weight);
+        }
+
+        totalWeight += weight;
+        values.add(value);
+        cumulativeWeights.add(totalWeight);
+        return this;
+    }
+
+    public T next(Random random) {
+        long pick = (long) (random.nextDouble() * totalWeight);
+        for (int i = 0; i < values.size(); i++) {
+            if (pick < cumulativeWeights.get(i)) {
+                return values.get(i);
+            }
+        }
+        return values.get(values.size() - 1);
+    }
+
+    public boolean isEmpty() {
+        return values.isEmpty();
+    }
+
+    public List<T> getValues() {
+        return values;
+    }
+}
@@ -0,0 +1,29 @@
+package com.willwarren.loadgen;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsCoverEveryValue() throws Exception {
+        for (long value : new long[]{0, 1, 127, 128, 129, 1000, 123456789L, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucketFor(value);
+            Assert.assertTrue(LatencyHistogram.highestValueIn(bucket) >= value);
+            Assert.assertTrue(bucket == 0 || LatencyHistogram.highestValueIn(bucket - 1) < value);
+        }
+    }
+
+    @Test
+    public void testPercentilesWithinPrecision() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 10000; i++) {
+            histogram.record(i * 1000);
+        }
+
+        Assert.assertEquals(10000, histogram.getTotalCount());
+        Assert.assertEquals(5000000, histogram.getValueAtPercentile(50), 5000000 * 0.016);
+        Assert.assertEquals(9900000, histogram.getValueAtPercentile(99), 9900000 * 0.016);
+        Assert.assertEquals(10000000, histogram.getValueAtPercentile(100));
+    }
+}